@@ -0,0 +1,105 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * What the benchmarks run against: an elasticsearch container on a real docker daemon ("docker") or
+ * {@link StubElasticsearch}, a local HTTP server answering immediately like a node would ("stub").
+ * With the stub, we measure the module code (client, metrics, reset) without docker nor elasticsearch.
+ */
+class BenchmarkBackend {
+
+    static final String DOCKER = "docker";
+    static final String STUB = "stub";
+
+    private static final String PASSWORD = "changeme";
+
+    private final ElasticsearchContainer container;
+    private final StubElasticsearch stub;
+    private RestClientFactory clientFactory;
+
+    private BenchmarkBackend(ElasticsearchContainer container, StubElasticsearch stub) {
+        this.container = container;
+        this.stub = stub;
+    }
+
+    /**
+     * Create a backend
+     * @param name          docker or stub
+     * @param customizer    Applied to the container before it starts. Not used by the stub.
+     * @return a backend which is not started yet
+     * @throws IOException if the stub can not be started
+     */
+    static BenchmarkBackend create(String name, Consumer<ElasticsearchContainer> customizer) throws IOException {
+        switch (name) {
+            case DOCKER:
+                ElasticsearchContainer container = new ElasticsearchContainer();
+                container.withEnv("ELASTIC_PASSWORD", PASSWORD);
+                customizer.accept(container);
+                return new BenchmarkBackend(container, null);
+            case STUB:
+                return new BenchmarkBackend(null, new StubElasticsearch());
+            default:
+                throw new IllegalArgumentException("Unknown backend [" + name + "]. Use " + DOCKER + " or " + STUB + ".");
+        }
+    }
+
+    void start() {
+        if (container != null) {
+            container.start();
+        }
+        clientFactory = new RestClientFactory(getHost(), PASSWORD);
+    }
+
+    HttpHost getHost() {
+        return container != null ? container.getHost() : stub.getHost();
+    }
+
+    RestClient getRestClient() {
+        return clientFactory.getClient();
+    }
+
+    /**
+     * Remove everything which has been created, like {@link ElasticsearchResource#reset()}
+     * @throws IOException if something goes wrong
+     */
+    void reset() throws IOException {
+        ClusterReset.reset(getRestClient(), null);
+        ElasticsearchContainer.installIndexDefaults(getRestClient(),
+                ElasticsearchContainer.majorVersion(ElasticsearchContainer.ELASTICSEARCH_DEFAULT_VERSION));
+    }
+
+    void stop() throws IOException {
+        if (clientFactory != null) {
+            clientFactory.close();
+        }
+        if (container != null) {
+            container.stop();
+        } else {
+            stub.close();
+        }
+    }
+}
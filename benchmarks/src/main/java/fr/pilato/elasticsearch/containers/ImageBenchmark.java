@@ -0,0 +1,161 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures what the module does before it asks docker for an image, without docker:
+ * <ul>
+ *     <li>imageHashCold / imageHashWarm: the image hash with a plugin zip file, without and with the digests
+ *     manifest of a previous run</li>
+ *     <li>resolvePluginFromCache / resolvePluginFromMavenRepository: finding the zip file of an official plugin</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageBenchmark {
+
+    private static final String PLUGIN = "ingest-attachment";
+    private static final String VERSION = ElasticsearchContainer.ELASTICSEARCH_DEFAULT_VERSION;
+    private static final int MB = 1024 * 1024;
+
+    @Param({"1", "20"})
+    public int pluginSizeMb;
+
+    private Path dir;
+    private Path mavenRepository;
+    private Path cacheDir;
+    private Path manifest;
+    private final Map<String, Path> pluginFiles = new TreeMap<>();
+    private final Map<String, String> securedKeys = new TreeMap<>();
+
+    @Setup(Level.Trial)
+    public void createPlugin() throws IOException {
+        dir = Files.createTempDirectory("image-benchmark");
+        mavenRepository = dir.resolve("repository");
+        Path zip = mavenRepository.resolve(Paths.get("org", "elasticsearch", "plugin", PLUGIN, VERSION, PLUGIN + "-" + VERSION + ".zip"));
+        Files.createDirectories(zip.getParent());
+        byte[] block = new byte[MB];
+        new Random(0).nextBytes(block);
+        try (OutputStream os = Files.newOutputStream(zip)) {
+            for (int i = 0; i < pluginSizeMb; i++) {
+                os.write(block);
+            }
+        }
+        pluginFiles.put(zip.getFileName().toString(), zip);
+        securedKeys.put("foo", "bar");
+
+        // What a previous run left behind
+        manifest = dir.resolve("warm").resolve(PluginStaging.MANIFEST_FILE);
+        cacheDir = dir.resolve("cache");
+        PluginStaging staging = new PluginStaging(manifest);
+        new PluginResolver(cacheDir, mavenRepository, null, staging).resolve(PLUGIN, VERSION);
+        staging.save();
+    }
+
+    @Benchmark
+    public String imageHashCold() {
+        // No manifest so the zip file is read
+        return imageHash(new PluginStaging(dir.resolve("cold").resolve(PluginStaging.MANIFEST_FILE)));
+    }
+
+    @Benchmark
+    public String imageHashWarm() {
+        return imageHash(new PluginStaging(manifest));
+    }
+
+    private String imageHash(PluginStaging staging) {
+        return ElasticsearchContainer.computeImageHash(ElasticsearchContainer.ELASTICSEARCH_DEFAULT_BASE_URL, VERSION,
+                Collections.singletonList(PLUGIN), pluginFiles, securedKeys, staging);
+    }
+
+    @Benchmark
+    public Path resolvePluginFromCache() {
+        return new PluginResolver(cacheDir, mavenRepository, null, new PluginStaging(manifest)).resolve(PLUGIN, VERSION);
+    }
+
+    @Benchmark
+    public Path resolvePluginFromMavenRepository(EmptyCache cache) {
+        // The zip file is hashed and linked into the cache
+        return new PluginResolver(cache.dir, mavenRepository, null, new PluginStaging(cache.dir.resolve(PluginStaging.MANIFEST_FILE)))
+                .resolve(PLUGIN, VERSION);
+    }
+
+    @TearDown(Level.Trial)
+    public void removePlugin() throws IOException {
+        delete(dir);
+    }
+
+    /**
+     * A new plugin cache for each call
+     */
+    @State(Scope.Thread)
+    public static class EmptyCache {
+        private Path dir;
+
+        @Setup(Level.Invocation)
+        public void create() throws IOException {
+            dir = Files.createTempDirectory("image-benchmark-cache");
+        }
+
+        @TearDown(Level.Invocation)
+        public void remove() throws IOException {
+            delete(dir);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
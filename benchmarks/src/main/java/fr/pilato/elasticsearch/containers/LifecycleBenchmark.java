@@ -0,0 +1,100 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.github.dockerjava.api.exception.NotFoundException;
+import org.apache.http.HttpHost;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.testcontainers.DockerClientFactory;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to get a node which is ready to use. It needs a docker daemon.
+ * <ul>
+ *     <li>coldStart: the custom image does not exist yet and needs to be built</li>
+ *     <li>warmStart: the custom image has already been built by a previous iteration</li>
+ * </ul>
+ * Each start is measured once (single shot) as this is what a test class sees.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class LifecycleBenchmark {
+
+    private static final String SETTING = "foo";
+
+    private ElasticsearchContainer container;
+    private boolean cold;
+
+    @Benchmark
+    public HttpHost coldStart() {
+        // A new value means a new image hash, so the image has to be built
+        container = newContainer(UUID.randomUUID().toString());
+        cold = true;
+        container.start();
+        return container.getHost();
+    }
+
+    @Benchmark
+    public HttpHost warmStart() {
+        container = newContainer("warm");
+        container.start();
+        return container.getHost();
+    }
+
+    private static ElasticsearchContainer newContainer(String value) {
+        ElasticsearchContainer container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withSecureSetting(SETTING, value);
+        return container;
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() {
+        if (container == null) {
+            return;
+        }
+        container.stop();
+        if (cold) {
+            // So the next cold start does not fill the local registry
+            try {
+                DockerClientFactory.instance().client().removeImageCmd(container.getDockerImageName()).withForce(true).exec();
+            } catch (NotFoundException ignored) {
+            }
+        }
+        container = null;
+        cold = false;
+    }
+}
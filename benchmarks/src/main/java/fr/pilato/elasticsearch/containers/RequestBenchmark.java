@@ -0,0 +1,99 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures request latency through a Rest client from {@link RestClientFactory}: a small request,
+ * a single document and a bulk request of {@link #BULK_SIZE} documents.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+
+    private static final int BULK_SIZE = 1000;
+    private static final String DOCUMENT = "{\"foo\":\"bar\",\"number\":42}";
+
+    @Param({BenchmarkBackend.DOCKER, BenchmarkBackend.STUB})
+    public String backend;
+
+    private BenchmarkBackend instance;
+    private RestClient client;
+    private NStringEntity bulk;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        instance = BenchmarkBackend.create(backend, container -> container.withFastEphemeralStorage("512m"));
+        instance.start();
+        client = instance.getRestClient();
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < BULK_SIZE; i++) {
+            body.append("{\"index\":{}}\n").append(DOCUMENT).append('\n');
+        }
+        bulk = new NStringEntity(body.toString(), ContentType.create("application/x-ndjson"));
+    }
+
+    @Benchmark
+    public Response smallRequest() throws IOException {
+        return client.performRequest("GET", "/");
+    }
+
+    @Benchmark
+    public Response indexDocument() throws IOException {
+        return client.performRequest("POST", "/benchmark/doc", Collections.emptyMap(),
+                new NStringEntity(DOCUMENT, ContentType.APPLICATION_JSON));
+    }
+
+    @Benchmark
+    public Response bulkRequest() throws IOException {
+        return client.performRequest("POST", "/benchmark/doc/_bulk", Collections.emptyMap(), bulk);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        instance.stop();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.RestClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of cleaning the node between two tests, when a test created a few indices.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResetBenchmark {
+
+    @Param({BenchmarkBackend.DOCKER, BenchmarkBackend.STUB})
+    public String backend;
+
+    @Param({"0", "5"})
+    public int indices;
+
+    private BenchmarkBackend instance;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        instance = BenchmarkBackend.create(backend, container -> container.withFastEphemeralStorage("512m"));
+        instance.start();
+    }
+
+    @Setup(Level.Invocation)
+    public void createIndices() throws IOException {
+        RestClient client = instance.getRestClient();
+        for (int i = 0; i < indices; i++) {
+            client.performRequest("PUT", "/test-" + i, Collections.emptyMap(),
+                    new NStringEntity("{\"settings\":{\"number_of_shards\":1}}", ContentType.APPLICATION_JSON));
+        }
+    }
+
+    @Benchmark
+    public void reset() throws IOException {
+        instance.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        instance.stop();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server which answers like an elasticsearch node would, without doing anything.
+ * It only knows about the endpoints the benchmarks use.
+ */
+class StubElasticsearch implements AutoCloseable {
+
+    private static final byte[] MAIN = ("{\"name\":\"stub\",\"cluster_name\":\"stub\",\"version\":{\"number\":\"" +
+            ElasticsearchContainer.ELASTICSEARCH_DEFAULT_VERSION + "\"},\"tagline\":\"You Know, for Search\"}").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEALTH = "{\"cluster_name\":\"stub\",\"status\":\"green\",\"timed_out\":false}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BULK = "{\"took\":0,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INDEX = "{\"_index\":\"stub\",\"_type\":\"doc\",\"_id\":\"1\",\"result\":\"created\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ACKNOWLEDGED = "{\"acknowledged\":true}".getBytes(StandardCharsets.UTF_8);
+
+    static {
+        // Otherwise small responses wait for the client delayed ACK (40ms) and we only measure that
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    StubElasticsearch() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(4, r -> {
+            Thread thread = new Thread(r, "stub-elasticsearch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    HttpHost getHost() {
+        InetSocketAddress address = server.getAddress();
+        return new HttpHost(address.getHostString(), address.getPort());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        // We need to read the request fully so the connection can be reused
+        try (InputStream is = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            while (is.read(buffer) != -1) {
+                // Nothing to do with the body
+            }
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        byte[] body;
+        if (path.equals("/")) {
+            body = MAIN;
+        } else if (path.startsWith("/_cluster/health")) {
+            body = HEALTH;
+        } else if (exchange.getRequestMethod().equals("GET") &&
+                (path.startsWith("/_template") || path.startsWith("/_ingest/pipeline"))) {
+            // No template nor pipeline to remove
+            body = EMPTY;
+        } else if (path.endsWith("/_bulk")) {
+            body = BULK;
+        } else if (exchange.getRequestMethod().equals("PUT") || exchange.getRequestMethod().equals("POST")) {
+            body = path.contains("/_") ? ACKNOWLEDGED : INDEX;
+        } else {
+            body = ACKNOWLEDGED;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.JsonNode;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads documents from a NDJSON source (one json document per line) using the bulk API.
+ * <p>
+ * The source is read as a stream and split into batches bounded by a number of documents and a size.
+ * Batches are sent concurrently but only a few of them are in flight at the same time, so the memory
+ * used does not depend on the size of the source. Documents rejected by the node (429) are sent again
+ * with an exponential backoff.
+ * <pre>
+ * BulkFixtureLoader.Result result = elasticsearch.fixtureLoader()
+ *         .withBatchSize(5000)
+ *         .withConcurrency(4)
+ *         .loadFromClasspath("my-index", "/fixtures/documents.ndjson");
+ * </pre>
+ */
+public class BulkFixtureLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkFixtureLoader.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String ACTION = "{\"index\":{}}\n";
+    private static final int ACTION_BYTES = ACTION.getBytes(StandardCharsets.UTF_8).length;
+
+    private final RestClient client;
+    private String type = "doc";
+    private int batchSize = 1000;
+    private long batchBytes = 5 * 1024 * 1024;
+    private int concurrency = 2;
+    private int maxRetries = 5;
+    private long initialBackoffMillis = 100;
+
+    public BulkFixtureLoader(RestClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Document type to use
+     * @param type  defaults to doc
+     * @return this
+     */
+    public BulkFixtureLoader withType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Maximum number of documents in one bulk request
+     * @param batchSize defaults to 1000
+     * @return this
+     */
+    public BulkFixtureLoader withBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Maximum size of one bulk request
+     * @param batchBytes    defaults to 5mb
+     * @return this
+     */
+    public BulkFixtureLoader withBatchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+        return this;
+    }
+
+    /**
+     * Maximum number of bulk requests sent at the same time
+     * @param concurrency   defaults to 2
+     * @return this
+     */
+    public BulkFixtureLoader withConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * How many times rejected documents are sent again before giving up
+     * @param maxRetries        defaults to 5
+     * @param initialBackoff    delay before the first retry, doubled for each next retry. Defaults to 100ms.
+     * @return this
+     */
+    public BulkFixtureLoader withRetries(int maxRetries, Duration initialBackoff) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoff.toMillis();
+        return this;
+    }
+
+    /**
+     * Load documents from a classpath resource
+     * @param index     Index name
+     * @param resource  Resource name like /fixtures/documents.ndjson
+     * @return the load result
+     * @throws IOException if the resource can not be read or if some documents could not be indexed
+     */
+    public Result loadFromClasspath(String index, String resource) throws IOException {
+        InputStream stream = BulkFixtureLoader.class.getResourceAsStream(resource);
+        if (stream == null) {
+            throw new IOException("Resource [" + resource + "] not found");
+        }
+        try (InputStream is = stream) {
+            return load(index, is);
+        }
+    }
+
+    /**
+     * Load documents from a file
+     * @param index     Index name
+     * @param file      NDJSON file
+     * @return the load result
+     * @throws IOException if the file can not be read or if some documents could not be indexed
+     */
+    public Result loadFromFile(String index, Path file) throws IOException {
+        try (InputStream is = Files.newInputStream(file)) {
+            return load(index, is);
+        }
+    }
+
+    /**
+     * Load documents from a stream. The stream is not closed.
+     * @param index     Index name
+     * @param ndjson    One json document per line
+     * @return the load result
+     * @throws IOException if the stream can not be read or if some documents could not be indexed
+     */
+    public Result load(String index, InputStream ndjson) throws IOException {
+        long start = System.nanoTime();
+        String endpoint = "/" + index + "/" + type + "/_bulk";
+        Load load = new Load(endpoint);
+        try {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(ndjson, StandardCharsets.UTF_8));
+                List<String> batch = new ArrayList<>();
+                long bytes = 0;
+                String line;
+                while ((line = reader.readLine()) != null && load.failure.get() == null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    batch.add(line);
+                    bytes += line.getBytes(StandardCharsets.UTF_8).length + ACTION_BYTES + 1;
+                    if (batch.size() >= batchSize || bytes >= batchBytes) {
+                        load.submit(batch);
+                        batch = new ArrayList<>();
+                        bytes = 0;
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    load.submit(batch);
+                }
+            } catch (IOException e) {
+                // Batches already sent (and their retries) complete before we give up
+                load.awaitAll();
+                if (load.failure.get() != null) {
+                    e.addSuppressed(load.failure.get());
+                }
+                throw e;
+            }
+            load.awaitAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading documents into [" + index + "]", e);
+        } finally {
+            load.scheduler.shutdownNow();
+        }
+
+        Result result = new Result(load.indexed.get(), load.failed.get(), load.retries.get(), Duration.ofNanos(System.nanoTime() - start));
+        if (load.failure.get() != null) {
+            throw new IOException("Failed to load " + result.getFailedDocs() + " documents into [" + index + "]", load.failure.get());
+        }
+
+        client.performRequest("POST", "/" + index + "/_refresh");
+        logger.info("Loaded {} documents into [{}] in {} ms ({} docs/s, {} retries)", result.getIndexedDocs(), index,
+                result.getTook().toMillis(), (long) result.getDocsPerSecond(), result.getRetries());
+        return result;
+    }
+
+    /**
+     * State of one load
+     */
+    private class Load {
+        private final String endpoint;
+        private final Semaphore inFlight = new Semaphore(concurrency);
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "elasticsearch-bulk-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicLong indexed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        private Load(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        private void submit(List<String> docs) throws InterruptedException {
+            inFlight.acquire();
+            send(docs, 0);
+        }
+
+        private void awaitAll() throws InterruptedException {
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        }
+
+        private void send(List<String> docs, int attempt) {
+            StringBuilder body = new StringBuilder();
+            for (String doc : docs) {
+                body.append(ACTION).append(doc).append('\n');
+            }
+
+            client.performRequestAsync("POST", endpoint, Collections.emptyMap(),
+                    new NStringEntity(body.toString(), ContentType.create("application/x-ndjson", StandardCharsets.UTF_8)),
+                    new ResponseListener() {
+                        @Override
+                        public void onSuccess(Response response) {
+                            List<String> rejected;
+                            try {
+                                rejected = collectRejected(response, docs);
+                            } catch (IOException | RuntimeException e) {
+                                // Whatever happens, the batch must give its permit back
+                                fail(docs.size(), e);
+                                return;
+                            }
+                            if (rejected.isEmpty()) {
+                                inFlight.release();
+                            } else {
+                                retry(rejected, attempt + 1);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Exception exception) {
+                            if (exception instanceof ResponseException &&
+                                    ((ResponseException) exception).getResponse().getStatusLine().getStatusCode() == 429) {
+                                retry(docs, attempt + 1);
+                            } else {
+                                fail(docs.size(), exception);
+                            }
+                        }
+                    });
+        }
+
+        /**
+         * Count indexed and failed documents and return the documents which have been rejected
+         */
+        private List<String> collectRejected(Response response, List<String> docs) throws IOException {
+            JsonNode root = MAPPER.readTree(response.getEntity().getContent());
+            if (!root.path("errors").asBoolean(false)) {
+                indexed.addAndGet(docs.size());
+                return Collections.emptyList();
+            }
+
+            List<String> rejected = new ArrayList<>();
+            JsonNode items = root.path("items");
+            for (int i = 0; i < items.size(); i++) {
+                JsonNode item = items.get(i).path("index");
+                int status = item.path("status").asInt();
+                if (status == 429) {
+                    rejected.add(docs.get(i));
+                } else if (status >= 300) {
+                    failed.incrementAndGet();
+                    failure.compareAndSet(null, new IOException("Document rejected with status [" + status + "]: " + item.path("error")));
+                } else {
+                    indexed.incrementAndGet();
+                }
+            }
+            return rejected;
+        }
+
+        private void retry(List<String> docs, int attempt) {
+            if (attempt > maxRetries) {
+                fail(docs.size(), new IOException(docs.size() + " documents still rejected after " + maxRetries + " retries"));
+                return;
+            }
+            retries.incrementAndGet();
+            long delay = initialBackoffMillis << (attempt - 1);
+            logger.debug("Retrying {} rejected documents in {} ms", docs.size(), delay);
+            scheduler.schedule(() -> {
+                try {
+                    send(docs, attempt);
+                } catch (RuntimeException e) {
+                    fail(docs.size(), e);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void fail(int docs, Exception e) {
+            failed.addAndGet(docs);
+            failure.compareAndSet(null, e);
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Result of a load
+     */
+    public static class Result {
+        private final long indexedDocs;
+        private final long failedDocs;
+        private final long retries;
+        private final Duration took;
+
+        Result(long indexedDocs, long failedDocs, long retries, Duration took) {
+            this.indexedDocs = indexedDocs;
+            this.failedDocs = failedDocs;
+            this.retries = retries;
+            this.took = took;
+        }
+
+        public long getIndexedDocs() {
+            return indexedDocs;
+        }
+
+        public long getFailedDocs() {
+            return failedDocs;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        public Duration getTook() {
+            return took;
+        }
+
+        public double getDocsPerSecond() {
+            long nanos = took.toNanos();
+            return nanos == 0 ? 0 : indexedDocs * 1_000_000_000.0 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "indexed=" + indexedDocs + ", failed=" + failedDocs + ", retries=" + retries +
+                    ", took=" + took.toMillis() + "ms, docs/s=" + (long) getDocsPerSecond();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.JsonNode;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Requests and responses recorded from a node, stored as one json document per line
+ * (gzipped when the file name ends with {@code .gz}).
+ * <p>
+ * Text bodies are stored as they are. Binary bodies (like SMILE or CBOR) are encoded in Base64 in
+ * {@code request_base64} and {@code response_base64} instead of {@code request} and {@code response}.
+ * <p>
+ * When the same request has been sent several times, its responses are replayed in the recorded order
+ * and the last one is replayed again when there are no more.
+ */
+final class Cassette {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final List<String> BINARY_TYPES = Arrays.asList("smile", "cbor", "octet-stream");
+
+    private final List<Interaction> interactions = new ArrayList<>();
+    private final Map<String, Replay> replays = new HashMap<>();
+
+    static final class Interaction {
+        final String method;
+        final String uri;
+        final byte[] requestBody;
+        final int status;
+        final String contentType;
+        final byte[] responseBody;
+
+        Interaction(String method, String uri, byte[] requestBody, int status, String contentType, byte[] responseBody) {
+            this.method = method;
+            this.uri = uri;
+            this.requestBody = requestBody;
+            this.status = status;
+            this.contentType = contentType;
+            this.responseBody = responseBody;
+        }
+
+        private String key() {
+            return Cassette.key(method, uri, requestBody);
+        }
+    }
+
+    private static final class Replay {
+        private final List<Interaction> responses = new ArrayList<>();
+        private int next = 0;
+    }
+
+    private static String key(String method, String uri, byte[] requestBody) {
+        // Every byte is a char in ISO-8859-1, so binary bodies are compared as they are
+        return method + " " + uri + "\n" + (requestBody == null ? "" : new String(requestBody, StandardCharsets.ISO_8859_1));
+    }
+
+    synchronized void add(Interaction interaction) {
+        interactions.add(interaction);
+        replays.computeIfAbsent(interaction.key(), k -> new Replay()).responses.add(interaction);
+    }
+
+    synchronized int size() {
+        return interactions.size();
+    }
+
+    /**
+     * Find the response to a request
+     * @return the recorded interaction or null if this request has never been recorded
+     */
+    synchronized Interaction replay(String method, String uri, byte[] requestBody) {
+        Replay replay = replays.get(key(method, uri, requestBody));
+        if (replay == null) {
+            return null;
+        }
+        Interaction interaction = replay.responses.get(replay.next);
+        if (replay.next < replay.responses.size() - 1) {
+            replay.next++;
+        }
+        return interaction;
+    }
+
+    static Cassette load(Path file) throws IOException {
+        Cassette cassette = new Cassette();
+        try (InputStream is = open(file);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JsonNode json = MAPPER.readTree(line);
+                cassette.add(new Interaction(json.path("method").asText(), json.path("uri").asText(), readBody(json, "request"),
+                        json.path("status").asInt(), json.hasNonNull("content_type") ? json.get("content_type").asText() : null,
+                        readBody(json, "response")));
+            }
+        }
+        return cassette;
+    }
+
+    private static byte[] readBody(JsonNode json, String field) {
+        if (json.hasNonNull(field + "_base64")) {
+            return Base64.getDecoder().decode(json.get(field + "_base64").asText());
+        }
+        return json.hasNonNull(field) ? json.get(field).asText().getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static void writeBody(ObjectNode json, String field, String contentType, byte[] body) {
+        if (body == null) {
+            return;
+        }
+        String text = toText(contentType, body);
+        if (text != null) {
+            json.put(field, text);
+        } else {
+            json.put(field + "_base64", Base64.getEncoder().encodeToString(body));
+        }
+    }
+
+    /**
+     * @return the body as a string or null if it is not text
+     */
+    private static String toText(String contentType, byte[] body) {
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            for (String binaryType : BINARY_TYPES) {
+                if (type.contains(binaryType)) {
+                    return null;
+                }
+            }
+        }
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(body))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private static InputStream open(Path file) throws IOException {
+        InputStream is = Files.newInputStream(file);
+        return isGzip(file) ? new GZIPInputStream(is) : is;
+    }
+
+    private static boolean isGzip(Path file) {
+        return file.getFileName().toString().endsWith(".gz");
+    }
+
+    /**
+     * Write the cassette. The file is replaced atomically.
+     */
+    synchronized void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream os = isGzip(file) ? new GZIPOutputStream(Files.newOutputStream(tmp)) : Files.newOutputStream(tmp);
+                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+                for (Interaction interaction : interactions) {
+                    ObjectNode json = MAPPER.createObjectNode();
+                    json.put("method", interaction.method);
+                    json.put("uri", interaction.uri);
+                    writeBody(json, "request", null, interaction.requestBody);
+                    json.put("status", interaction.status);
+                    if (interaction.contentType != null) {
+                        json.put("content_type", interaction.contentType);
+                    }
+                    writeBody(json, "response", interaction.contentType, interaction.responseBody);
+                    writer.write(MAPPER.writeValueAsString(json));
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * How an {@link ElasticsearchResource} uses a cassette file of recorded requests and responses
+ * @see ElasticsearchResource#withCassette(java.nio.file.Path, CassetteMode)
+ */
+public enum CassetteMode {
+    /**
+     * Start a container and record the requests sent to it, replacing the existing cassette if any
+     */
+    RECORD,
+    /**
+     * Do not start any container: answer the requests with the responses of the cassette
+     */
+    REPLAY,
+    /**
+     * Replay the cassette if it exists, record it otherwise
+     */
+    AUTO;
+
+    /**
+     * @param mode  record, replay or auto, in any case
+     * @return the mode
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    static CassetteMode parse(String mode) {
+        for (CassetteMode value : values()) {
+            if (value.name().equalsIgnoreCase(mode.trim())) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cassette mode [" + mode + "]. Valid values are " +
+                Arrays.stream(values()).map(value -> value.name().toLowerCase(Locale.ROOT)).collect(Collectors.joining(", ")));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server which either forwards the requests to a node and records them in a {@link Cassette},
+ * or answers them with the responses of a cassette without any node.
+ */
+final class CassetteServer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CassetteServer.class);
+
+    static {
+        // Otherwise small responses wait for the client delayed ACK (40ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final Path file;
+    private final Cassette cassette;
+    private final RestClient target;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private CassetteServer(Path file, Cassette cassette, RestClient target) throws IOException {
+        this.file = file;
+        this.cassette = cassette;
+        this.target = target;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "elasticsearch-cassette");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Forward the requests to a node and record them. The cassette is written when the server is closed.
+     * @param file      Cassette file
+     * @param node      The node to forward the requests to
+     * @return the started server
+     * @throws IOException if the server can not start
+     */
+    static CassetteServer record(Path file, HttpHost node) throws IOException {
+        logger.info("Recording the requests sent to [{}] into [{}]", node, file);
+        return new CassetteServer(file, new Cassette(), RestClient.builder(node).build());
+    }
+
+    /**
+     * Answer the requests with the responses of a cassette
+     * @param file      Cassette file
+     * @return the started server
+     * @throws IOException if the cassette can not be read or the server can not start
+     */
+    static CassetteServer replay(Path file) throws IOException {
+        Cassette cassette = Cassette.load(file);
+        logger.info("Replaying {} recorded requests from [{}]", cassette.size(), file);
+        return new CassetteServer(file, cassette, null);
+    }
+
+    HttpHost getHost() {
+        InetSocketAddress address = server.getAddress();
+        return new HttpHost(address.getHostString(), address.getPort());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getRawPath();
+            String query = exchange.getRequestURI().getRawQuery();
+            String uri = query == null ? path : path + "?" + query;
+            byte[] body = readFully(exchange.getRequestBody());
+            byte[] requestBody = body.length == 0 ? null : body;
+
+            Cassette.Interaction interaction;
+            if (target == null) {
+                interaction = cassette.replay(method, uri, requestBody);
+                if (interaction == null) {
+                    logger.warn("No recorded response for [{} {}] in [{}]", method, uri, file);
+                    interaction = new Cassette.Interaction(method, uri, requestBody, 500, "application/json",
+                            "{\"error\":\"no recorded response for this request\"}".getBytes(StandardCharsets.UTF_8));
+                }
+            } else {
+                try {
+                    interaction = forward(method, path, query, exchange.getRequestHeaders().getFirst("Content-Type"),
+                            exchange.getRequestHeaders().getFirst("Authorization"), uri, requestBody);
+                    cassette.add(interaction);
+                } catch (IOException e) {
+                    // The node did not answer: there is nothing to record
+                    logger.warn("Can not forward [{} {}]: {}", method, uri, e.getMessage());
+                    interaction = new Cassette.Interaction(method, uri, requestBody, 502, null, null);
+                }
+            }
+            respond(exchange, interaction);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Cassette.Interaction forward(String method, String path, String query, String contentType, String authorization,
+                                         String uri, byte[] requestBody) throws IOException {
+        HttpEntity entity = requestBody == null ? null :
+                new NByteArrayEntity(requestBody, contentType == null ? ContentType.APPLICATION_JSON : ContentType.parse(contentType));
+        Header[] headers = authorization == null ? new Header[0] : new Header[]{new BasicHeader("Authorization", authorization)};
+        Response response;
+        try {
+            response = target.performRequest(method, path, parseQuery(query), entity, headers);
+        } catch (ResponseException e) {
+            response = e.getResponse();
+        }
+        HttpEntity responseEntity = response.getEntity();
+        byte[] responseBody = responseEntity == null ? null : EntityUtils.toByteArray(responseEntity);
+        String responseType = responseEntity == null || responseEntity.getContentType() == null ? null :
+                responseEntity.getContentType().getValue();
+        return new Cassette.Interaction(method, uri, requestBody, response.getStatusLine().getStatusCode(), responseType, responseBody);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.isEmpty()) {
+                    continue;
+                }
+                int equals = param.indexOf('=');
+                String name = equals < 0 ? param : param.substring(0, equals);
+                String value = equals < 0 ? "" : param.substring(equals + 1);
+                params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange exchange, Cassette.Interaction interaction) throws IOException {
+        if (interaction.contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", interaction.contentType);
+        }
+        byte[] bytes = interaction.responseBody == null ? new byte[0] : interaction.responseBody;
+        if (bytes.length == 0 || "HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(interaction.status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(interaction.status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Stop the server and write the cassette if we were recording
+     * @throws IOException if the cassette can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        server.stop(0);
+        executor.shutdownNow();
+        if (target != null) {
+            target.close();
+            cassette.save(file);
+            logger.info("Recorded {} requests into [{}]", cassette.size(), file);
+        }
+    }
+}
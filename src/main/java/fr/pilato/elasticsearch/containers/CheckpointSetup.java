@@ -0,0 +1,37 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import java.io.IOException;
+
+/**
+ * Prepares a started node (index templates, ingest pipelines, indices, documents...) before it is saved as a checkpoint
+ * @see ElasticsearchContainer#withCheckpoint(String, CheckpointSetup)
+ */
+@FunctionalInterface
+public interface CheckpointSetup {
+
+    /**
+     * Prepare the node
+     * @param container The started container. Use {@link ElasticsearchContainer#getRestClient()} to call it.
+     * @throws IOException if something goes wrong
+     */
+    void setup(ElasticsearchContainer container) throws IOException;
+}
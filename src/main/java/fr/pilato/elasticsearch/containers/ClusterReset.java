@@ -0,0 +1,161 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Removes what tests created in a node: indices (with their aliases), index templates and ingest pipelines.
+ * <p>
+ * All the requests of a step are sent at the same time so a reset costs about two round trips: one to list
+ * the templates and pipelines and one to delete them with the indices.
+ * System indices, templates and pipelines (starting with a dot, like our own {@code .testcontainers-*} templates,
+ * or created by X-Pack) are kept.
+ */
+final class ClusterReset {
+
+    private static final long TIMEOUT_SECONDS = 30;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Templates and pipelines X-Pack creates without a leading dot
+     */
+    private static final List<String> SYSTEM_PREFIXES = Arrays.asList(".", "security-index-template", "security_audit_log",
+            "logstash-index-template", "xpack_monitoring_");
+
+    private ClusterReset() {
+    }
+
+    /**
+     * Reset the node
+     * @param client        Rest client to use
+     * @param namespace     If not null, only removes what belongs to this namespace
+     * @throws IOException  if something goes wrong
+     */
+    static void reset(RestClient client, IndexNamespace namespace) throws IOException {
+        if (namespace != null) {
+            String names = namespace.getPrefix() + "*";
+            await(Arrays.asList(
+                    request(client, "DELETE", "/" + names),
+                    request(client, "DELETE", "/_template/" + names),
+                    request(client, "DELETE", "/_ingest/pipeline/" + names)));
+            return;
+        }
+
+        CompletableFuture<List<String>> templates = request(client, "GET", "/_template").thenApply(ClusterReset::userNames);
+        CompletableFuture<List<String>> pipelines = request(client, "GET", "/_ingest/pipeline").thenApply(ClusterReset::userNames);
+        await(Arrays.asList(templates, pipelines));
+
+        List<CompletableFuture<?>> requests = new ArrayList<>();
+        requests.add(request(client, "DELETE", "/*,-.*"));
+        for (String template : templates.join()) {
+            requests.add(request(client, "DELETE", "/_template/" + template));
+        }
+        for (String pipeline : pipelines.join()) {
+            requests.add(request(client, "DELETE", "/_ingest/pipeline/" + pipeline));
+        }
+        await(requests);
+    }
+
+    /**
+     * @param name  Template or pipeline name
+     * @return true if it belongs to elasticsearch, X-Pack or this module and must survive a reset
+     */
+    static boolean isSystem(String name) {
+        for (String prefix : SYSTEM_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the names of a templates or pipelines listing, without the system ones
+     */
+    private static List<String> userNames(Response response) {
+        List<String> names = new ArrayList<>();
+        if (response.getStatusLine().getStatusCode() == 404 || response.getEntity() == null) {
+            return names;
+        }
+        try {
+            Iterator<String> fields = MAPPER.readTree(response.getEntity().getContent()).fieldNames();
+            while (fields.hasNext()) {
+                String name = fields.next();
+                if (!isSystem(name)) {
+                    names.add(name);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return names;
+    }
+
+    private static void await(List<? extends CompletableFuture<?>> requests) throws IOException {
+        try {
+            CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resetting elasticsearch", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Can not reset elasticsearch", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out while resetting elasticsearch", e);
+        }
+    }
+
+    private static CompletableFuture<Response> request(RestClient client, String method, String endpoint) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        client.performRequestAsync(method, endpoint, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                // Nothing to list or to delete is just fine
+                if (exception instanceof ResponseException &&
+                        ((ResponseException) exception).getResponse().getStatusLine().getStatusCode() == 404) {
+                    future.complete(((ResponseException) exception).getResponse());
+                } else {
+                    future.completeExceptionally(exception);
+                }
+            }
+        });
+        return future;
+    }
+}
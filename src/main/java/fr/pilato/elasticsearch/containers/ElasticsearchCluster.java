@@ -0,0 +1,211 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.apache.http.HttpHost;
+import org.junit.rules.ExternalResource;
+import org.rnorth.ducttape.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.Network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_BASE_URL;
+import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_VERSION;
+
+/**
+ * Represents a cluster of elasticsearch nodes running in docker containers on the same docker network.
+ * Nodes discover each other using their network alias (es-node-0, es-node-1...) and are all started at the same time.
+ * It can be used as a Junit rule or started and stopped manually.
+ * <pre>
+ * ElasticsearchCluster cluster = new ElasticsearchCluster(3)
+ *         .withVersion("6.3.0")
+ *         .withNodeCustomizer(node -&gt; node.withHeapSize("256m"));
+ * cluster.start();
+ * RestClient client = RestClient.builder(cluster.getHosts().toArray(new HttpHost[0])).build();
+ * </pre>
+ * @author dadoonet
+ */
+public class ElasticsearchCluster extends ExternalResource {
+
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchCluster.class);
+    private static final String NODE_NAME_PREFIX = "es-node-";
+
+    private final int numberOfNodes;
+    private String baseUrl = ELASTICSEARCH_DEFAULT_BASE_URL;
+    private String version = ELASTICSEARCH_DEFAULT_VERSION;
+    private String clusterName = "docker-cluster";
+    private final List<Consumer<ElasticsearchContainer>> customizers = new ArrayList<>();
+    private final List<ElasticsearchContainer> nodes = new ArrayList<>();
+    private Network network;
+
+    /**
+     * Create a cluster
+     * @param numberOfNodes Number of nodes to start
+     */
+    public ElasticsearchCluster(int numberOfNodes) {
+        Preconditions.check("A cluster needs at least one node", numberOfNodes > 0);
+        this.numberOfNodes = numberOfNodes;
+    }
+
+    /**
+     * Define the elasticsearch version to start
+     * @param version  Elasticsearch Version like 5.6.6 or 6.2.1
+     * @return this
+     */
+    public ElasticsearchCluster withVersion(String version) {
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * Define the elasticsearch docker registry base url
+     * @param baseUrl  defaults to docker.elastic.co/elasticsearch/elasticsearch
+     * @return this
+     */
+    public ElasticsearchCluster withBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+        return this;
+    }
+
+    /**
+     * Define the cluster name
+     * @param clusterName   defaults to docker-cluster
+     * @return this
+     */
+    public ElasticsearchCluster withClusterName(String clusterName) {
+        this.clusterName = clusterName;
+        return this;
+    }
+
+    /**
+     * Customize every node before it starts (plugins, heap size, password...)
+     * @param customizer    Called for each node
+     * @return this
+     */
+    public ElasticsearchCluster withNodeCustomizer(Consumer<ElasticsearchContainer> customizer) {
+        customizers.add(customizer);
+        return this;
+    }
+
+    /**
+     * Start all the nodes at the same time and wait for all of them to be ready
+     */
+    public void start() {
+        Preconditions.check("cluster is already started", nodes.isEmpty());
+        logger.info("Starting a {} nodes elasticsearch cluster using version [{}] from [{}]", numberOfNodes, version, baseUrl);
+        network = Network.newNetwork();
+        for (int i = 0; i < numberOfNodes; i++) {
+            nodes.add(createNode(i));
+        }
+
+        try {
+            CompletableFuture.allOf(nodes.stream()
+                    .map(ElasticsearchContainer::startAsync)
+                    .toArray(CompletableFuture[]::new))
+                    .join();
+        } catch (CompletionException e) {
+            stop();
+            throw new IllegalStateException("Can not start the cluster", e.getCause());
+        }
+    }
+
+    private ElasticsearchContainer createNode(int index) {
+        ElasticsearchContainer node = new ElasticsearchContainer()
+                .withBaseUrl(baseUrl)
+                .withVersion(version);
+        String nodeName = NODE_NAME_PREFIX + index;
+        String allNodes = nodeNames();
+        node.withNetwork(network);
+        node.withNetworkAliases(nodeName);
+        node.withEnv("cluster.name", clusterName);
+        node.withEnv("node.name", nodeName);
+        if (node.majorVersion() >= 7) {
+            node.withEnv("discovery.seed_hosts", allNodes);
+            node.withEnv("cluster.initial_master_nodes", allNodes);
+        } else {
+            node.withEnv("discovery.zen.ping.unicast.hosts", allNodes);
+            node.withEnv("discovery.zen.minimum_master_nodes", String.valueOf(numberOfNodes / 2 + 1));
+        }
+        for (Consumer<ElasticsearchContainer> customizer : customizers) {
+            customizer.accept(node);
+        }
+        return node;
+    }
+
+    private String nodeNames() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < numberOfNodes; i++) {
+            names.add(NODE_NAME_PREFIX + i);
+        }
+        return String.join(",", names);
+    }
+
+    /**
+     * Stop all the nodes and remove the network
+     */
+    public void stop() {
+        for (ElasticsearchContainer node : nodes) {
+            node.stop();
+        }
+        nodes.clear();
+        if (network != null) {
+            try {
+                network.close();
+            } catch (Exception e) {
+                logger.warn("Error while removing the cluster network", e);
+            }
+            network = null;
+        }
+    }
+
+    /**
+     * Get the HttpHost instances you can use to build an elasticsearch Rest client
+     * @return one HttpHost per node
+     */
+    public List<HttpHost> getHosts() {
+        Preconditions.check("cluster must have been started", !nodes.isEmpty());
+        return nodes.stream().map(ElasticsearchContainer::getHost).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the nodes of the cluster
+     */
+    public List<ElasticsearchContainer> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    @Override
+    protected void before() {
+        start();
+    }
+
+    @Override
+    protected void after() {
+        stop();
+    }
+}
@@ -19,21 +19,57 @@
 
 package fr.pilato.elasticsearch.containers;
 
+import com.github.dockerjava.api.command.CreateContainerCmd;
+import com.github.dockerjava.api.command.InspectContainerResponse;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.model.Ulimit;
 import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.rnorth.ducttape.Preconditions;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.DockerClientFactory;
 import org.testcontainers.containers.BindMode;
 import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.images.RemoteDockerImage;
 import org.testcontainers.images.builder.ImageFromDockerfile;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.node.ObjectNode;
 import org.testcontainers.shaded.com.google.common.collect.ImmutableSet;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 import static fr.pilato.elasticsearch.containers.ElasticsearchResource.FALLBACK_RESOURCE_NAME;
 
@@ -46,6 +82,17 @@ public class ElasticsearchContainer<SELF extends ElasticsearchContainer<SELF>> e
 
     private static final int ELASTICSEARCH_DEFAULT_PORT = 9200;
     private static final int ELASTICSEARCH_DEFAULT_TCP_PORT = 9300;
+    static final String IMAGE_CACHE_REPOSITORY = "testcontainers-elasticsearch";
+    static final String SNAPSHOT_REPOSITORY_NAME = "testcontainers-fixtures";
+    private static final String SNAPSHOT_REPOSITORY_PATH = "/usr/share/elasticsearch/snapshots";
+    private static final String DATA_PATH = "/usr/share/elasticsearch/data";
+    // Docker does not commit volumes so checkpoints must not store their data in one
+    private static final String CHECKPOINT_DATA_PATH = "/usr/share/elasticsearch/checkpoint-data";
+    static final String INDEX_DEFAULTS_TEMPLATE = ".testcontainers-index-defaults";
+    static final Duration INDEX_DEFAULTS_REFRESH_INTERVAL = Duration.ofSeconds(30);
+    private static final long MB = 1024 * 1024;
+    private static final long MIN_DEFAULT_HEAP = 256 * MB;
+    private static final long MAX_DEFAULT_HEAP = 1024 * MB;
     static final String ELASTICSEARCH_DEFAULT_BASE_URL;
     static final String ELASTICSEARCH_DEFAULT_VERSION;
     static {
@@ -58,11 +105,66 @@ public class ElasticsearchContainer<SELF extends ElasticsearchContainer<SELF>> e
         ELASTICSEARCH_DEFAULT_VERSION = props.getProperty("version");
     }
 
+    /**
+     * Images we already resolved (built or found locally) in this JVM, by image name.
+     * It avoids building the same image twice when containers are started concurrently.
+     */
+    static final Map<String, Future<String>> RESOLVED_IMAGES = new ConcurrentHashMap<>();
+
+    /**
+     * File to append startup timings to, if the elasticsearch.startup.report system property is set
+     */
+    private static final String DEFAULT_STARTUP_REPORT = System.getProperty("elasticsearch.startup.report");
+    private static final Object STARTUP_REPORT_LOCK = new Object();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Threads used to start containers in the background
+     */
+    static final ExecutorService START_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "elasticsearch-start");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private String baseUrl = ELASTICSEARCH_DEFAULT_BASE_URL;
     private String version = ELASTICSEARCH_DEFAULT_VERSION;
-    private Path pluginDir = null;
+    // Plugins zip files to send to the image build context, by file name
+    private final Map<String, Path> pluginFiles = new TreeMap<>();
     private List<String> plugins = new ArrayList<>();
-    private Map<String, String> securedKeys = new HashMap<>();
+    private Path pluginCacheDir = PluginResolver.DEFAULT_CACHE_DIR;
+    private String pluginMirror = PluginResolver.DEFAULT_MIRROR;
+    private Map<String, String> securedKeys = new TreeMap<>();
+    private Path snapshotDir = null;
+    private String ephemeralDataSize = null;
+    private String checkpointName = null;
+    private CheckpointSetup checkpointSetup = null;
+    private String checkpointImage = null;
+    private boolean checkpointRestored = false;
+    private String heapSize = null;
+    private GarbageCollector garbageCollector = null;
+    private boolean memoryLock = false;
+    private String memoryLimit = null;
+    private Double cpuLimit = null;
+    private final StartupTimer startupTimer = new StartupTimer();
+    private Path startupReport = DEFAULT_STARTUP_REPORT == null ? null : Paths.get(DEFAULT_STARTUP_REPORT);
+    private Duration statsInterval = null;
+    private Path statsReport = null;
+    private NodeStatsSampler statsSampler = null;
+    private boolean faultInjection = false;
+    private FaultInjectionProxy httpProxy = null;
+    private FaultInjectionProxy transportProxy = null;
+    private RestClient restClient;
+    // ES_JAVA_OPTS as defined by the user and as we computed it, so configure() can run more than once
+    private String userJavaOpts = null;
+    private String computedJavaOpts = null;
+    private long memory = -1;
+
+    public ElasticsearchContainer() {
+        this.waitStrategy = new ElasticsearchWaitStrategy();
+        // Registered once. The settings are read when the container is created.
+        withCreateContainerCmdModifier(this::configureHostConfig);
+    }
 
     /**
      * Define the elasticsearch version to start
@@ -96,7 +198,9 @@ public class ElasticsearchContainer<SELF extends ElasticsearchContainer<SELF>> e
     }
 
     /**
-     * Plugin name to install. Note that will download the plugin from internet the first time you build the image
+     * Plugin name to install. Official plugins are first searched in the plugin cache, then in the local maven
+     * repository and in the plugin mirror if any. If the plugin can not be found locally, the plugin is downloaded
+     * from internet the first time you build the image
      * @param pluginName plugins dir
      * @return this
      */
@@ -115,24 +219,14 @@ public class ElasticsearchContainer<SELF extends ElasticsearchContainer<SELF>> e
             return this;
         }
 
-        // When we have a plugin dir, we need to mount it in the docker instance
-        this.pluginDir = createVolumeDirectory(true);
-
-        // We create the volume that will be needed for plugins
-        addFileSystemBind(this.pluginDir.toString(), "/plugins", BindMode.READ_ONLY);
-
         logger().debug("Installing plugins from [{}]", pluginDir);
-        try {
-            Files.list(pluginDir).forEach(path -> {
+        try (Stream<Path> files = Files.list(pluginDir)) {
+            files.sorted().forEach(path -> {
                 logger().trace("File found in [{}]: [{}]", pluginDir, path);
                 if (path.toString().endsWith(".zip")) {
-                    logger().debug("Copying [{}] to [{}]", path.getFileName(), this.pluginDir.toAbsolutePath().toString());
-                    try {
-                        Files.copy(path, this.pluginDir.resolve(path.getFileName()));
-                        withPlugin("file:///tmp/plugins/" + path.getFileName());
-                    } catch (IOException e) {
-                        logger().error("Error while copying", e);
-                    }
+                    // Files are read from here when we build the image. No need to copy them.
+                    pluginFiles.put(path.getFileName().toString(), path.toAbsolutePath());
+                    withPlugin("file:///tmp/plugins/" + path.getFileName());
                 }
             });
         } catch (IOException e) {
@@ -141,6 +235,254 @@ public class ElasticsearchContainer<SELF extends ElasticsearchContainer<SELF>> e
         return this;
     }
 
+    /**
+     * Directory where official plugins zip files are cached once resolved
+     * @param pluginCacheDir    defaults to ~/.testcontainers-elasticsearch/plugins
+     * @return this
+     */
+    public ElasticsearchContainer withPluginCache(Path pluginCacheDir) {
+        this.pluginCacheDir = pluginCacheDir;
+        return this;
+    }
+
+    /**
+     * Where to download official plugins from when they are not in the cache nor in the local maven repository.
+     * It must have the same layout as https://artifacts.elastic.co/downloads/elasticsearch-plugins.
+     * @param pluginMirror  Mirror url. Defaults to the elasticsearch.plugins.mirror system property if any.
+     * @return this
+     */
+    public ElasticsearchContainer withPluginMirror(String pluginMirror) {
+        this.pluginMirror = pluginMirror;
+        return this;
+    }
+
+    /**
+     * Replace official plugins we can find locally by their zip file
+     * @return the plugins to install
+     */
+    private List<String> resolvePlugins(PluginStaging staging) {
+        PluginResolver resolver = new PluginResolver(pluginCacheDir, PluginResolver.DEFAULT_MAVEN_REPOSITORY, pluginMirror, staging);
+        List<String> resolved = new ArrayList<>();
+        for (String plugin : plugins) {
+            Path zip = resolver.resolve(plugin, version);
+            if (zip == null) {
+                resolved.add(plugin);
+            } else {
+                pluginFiles.put(zip.getFileName().toString(), zip);
+                resolved.add("file:///tmp/plugins/" + zip.getFileName());
+            }
+        }
+        return resolved;
+    }
+
+    private PluginStaging newPluginStaging() {
+        return new PluginStaging(pluginCacheDir.resolve(PluginStaging.MANIFEST_FILE));
+    }
+
+    /**
+     * Local directory to use as a snapshot repository. It is mounted in the container, declared as
+     * {@code path.repo} and registered as the {@value #SNAPSHOT_REPOSITORY_NAME} repository once the node is started.
+     * As the directory is kept between runs, a dataset can be loaded once, saved with {@link #snapshotFixture(String)}
+     * and then restored in seconds with {@link #restoreFixture(String)}.
+     * @param snapshotDir snapshot repository dir
+     * @return this
+     */
+    public ElasticsearchContainer withSnapshotRepository(Path snapshotDir) {
+        this.snapshotDir = snapshotDir;
+        return this;
+    }
+
+    /**
+     * Start from a checkpoint: an image which contains the node data once prepared by a setup callback.
+     * The first time, the callback runs on the started node, which is then committed into a
+     * {@value #IMAGE_CACHE_REPOSITORY}:checkpoint-&lt;hash&gt; image. Next starts use this image and don't call
+     * the callback anymore. The hash is computed from the image settings and the checkpoint name, so
+     * change the name when you change what the callback does.
+     * It can not be used with {@link #withFastEphemeralStorage(String)} as data in memory can not be committed.
+     * @param name  Checkpoint name, like my-templates-v1
+     * @param setup Prepares the node (index templates, ingest pipelines, indices...)
+     * @return this
+     */
+    public ElasticsearchContainer withCheckpoint(String name, CheckpointSetup setup) {
+        this.checkpointName = name;
+        this.checkpointSetup = setup;
+        return this;
+    }
+
+    /**
+     * @return true if the container started from an existing checkpoint
+     */
+    public boolean isCheckpointRestored() {
+        return checkpointRestored;
+    }
+
+    /**
+     * Trade durability for speed. The data path is mounted as a tmpfs (in memory) volume, disk watermarks
+     * are disabled and all indices are created by default with an async translog, a 30s refresh interval
+     * and no replica. Data is lost when the container stops.
+     * @param dataSize  Maximum size of the data path, like 512m or 2g
+     * @return this
+     */
+    public ElasticsearchContainer withFastEphemeralStorage(String dataSize) {
+        this.ephemeralDataSize = dataSize;
+        return this;
+    }
+
+    /**
+     * Define the JVM heap size (min and max). If not set and if ES_JAVA_OPTS does not define it, the heap
+     * size is 1/16 of the docker host memory, between 256m and 1g.
+     * @param heapSize  Heap size like 512m or 1g
+     * @return this
+     */
+    public ElasticsearchContainer withHeapSize(String heapSize) {
+        this.heapSize = heapSize;
+        return this;
+    }
+
+    /**
+     * Define the garbage collector elasticsearch should use
+     * @param garbageCollector  Garbage collector
+     * @return this
+     */
+    public ElasticsearchContainer withGarbageCollector(GarbageCollector garbageCollector) {
+        this.garbageCollector = garbageCollector;
+        return this;
+    }
+
+    /**
+     * Lock the JVM memory so it never gets swapped. It sets {@code bootstrap.memory_lock}
+     * and removes the memlock limit of the container.
+     * @param memoryLock true to lock the memory
+     * @return this
+     */
+    public ElasticsearchContainer withMemoryLock(boolean memoryLock) {
+        this.memoryLock = memoryLock;
+        return this;
+    }
+
+    /**
+     * Define the maximum memory the container can use. If not set, it is computed from the heap size:
+     * twice the heap plus 512m for the off heap memory.
+     * @param memoryLimit   Memory limit like 1g
+     * @return this
+     */
+    public ElasticsearchContainer withMemoryLimit(String memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        return this;
+    }
+
+    /**
+     * Define how many CPUs the container can use. Elasticsearch {@code processors} setting is set
+     * accordingly so thread pools are sized for this limit.
+     * @param cpus  Number of CPUs, like 1.5
+     * @return this
+     */
+    public ElasticsearchContainer withCpuLimit(double cpus) {
+        this.cpuLimit = cpus;
+        return this;
+    }
+
+    /**
+     * Put a {@link FaultInjectionProxy} in front of the HTTP (9200) and transport (9300) ports so tests can add
+     * latency, limit the bandwidth or reset connections. {@link #getHost()} and {@link #getRestClient()} then
+     * go through the proxy. The proxies have no fault until you define some.
+     * @return this
+     */
+    public ElasticsearchContainer withFaultInjectionProxy() {
+        this.faultInjection = true;
+        return this;
+    }
+
+    /**
+     * @return the proxy in front of the HTTP port, or null if the proxy is not enabled or the container is not started
+     */
+    public FaultInjectionProxy getFaultInjectionProxy() {
+        return httpProxy;
+    }
+
+    /**
+     * @return the proxy in front of the transport port, or null if the proxy is not enabled or the container is not started
+     */
+    public FaultInjectionProxy getTransportFaultInjectionProxy() {
+        return transportProxy;
+    }
+
+    /**
+     * Get notified when each startup phase ends
+     * @param listener  Called each time the container starts
+     * @return this
+     */
+    public ElasticsearchContainer withStartupListener(StartupListener listener) {
+        startupTimer.addListener(listener);
+        return this;
+    }
+
+    /**
+     * File to append the startup timings to, as one json document per start. Something like
+     * target/elasticsearch-startup.ndjson makes it easy to follow the startup time across builds.
+     * @param startupReport Report file. Defaults to the elasticsearch.startup.report system property if any.
+     * @return this
+     */
+    public ElasticsearchContainer withStartupReport(Path startupReport) {
+        this.startupReport = startupReport;
+        return this;
+    }
+
+    /**
+     * Sample the node stats (heap, GC, write and search thread pools, merges...) and the docker container stats
+     * (CPU, memory) in the background while the container runs. The last 3600
+     * samples are kept and written to the report file when the container stops.
+     * @param interval  Time between two samples, like 1 second
+     * @param report    A CSV file or a json file if its name ends with .json. Can be null.
+     * @return this
+     */
+    public ElasticsearchContainer withStatsSampling(Duration interval, Path report) {
+        Preconditions.check("interval must be positive", !interval.isNegative() && !interval.isZero());
+        this.statsInterval = interval;
+        this.statsReport = report;
+        return this;
+    }
+
+    /**
+     * Get the samples collected since the container started (or during its last run if it is stopped)
+     * @return the samples, oldest first. Empty if sampling is not enabled.
+     */
+    public List<NodeStatsSample> getStatsSamples() {
+        return statsSampler == null ? Collections.emptyList() : statsSampler.getSamples();
+    }
+
+    /**
+     * Get how long each phase of the last start took. Phases we could not observe are missing
+     * and their duration is included in the next phase.
+     * @return the duration of each phase, in phase order
+     */
+    public Map<StartupPhase, Duration> getStartupTimings() {
+        return startupTimer.getTimings();
+    }
+
+    /**
+     * Make the container belong to another testcontainers session, so it is not removed when this JVM exits.
+     * Whoever uses this session has to stop the container.
+     * @param sessionId The session id
+     * @return this
+     */
+    ElasticsearchContainer withSessionId(String sessionId) {
+        dockerClient = SessionDockerClient.wrap(dockerClient, sessionId);
+        return this;
+    }
+
+    /**
+     * Start the container in the background, so other things can be done while the image
+     * is built or pulled and while elasticsearch starts.
+     * @return a future which completes with the HttpHost once the container is ready
+     */
+    public CompletableFuture<HttpHost> startAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            start();
+            return getHost();
+        }, START_EXECUTOR);
+    }
+
     @Override
     public Set<Integer> getLivenessCheckPortNumbers() {
         return ImmutableSet.of(getMappedPort(ELASTICSEARCH_DEFAULT_PORT));
@@ -149,40 +491,646 @@ public class ElasticsearchContainer<SELF extends ElasticsearchContainer<SELF>> e
     @Override
     protected void configure() {
         logger().info("Starting an elasticsearch container using version [{}] from [{}]", version, baseUrl);
-        ImageFromDockerfile dockerImage = new ImageFromDockerfile()
+        startupTimer.reset();
+        PluginStaging staging = newPluginStaging();
+        List<String> resolvedPlugins = resolvePlugins(staging);
+        if (checkpointName != null) {
+            setImage(timeImage(resolveCheckpoint(resolvedPlugins, staging)));
+        } else {
+            setImage(timeImage(resolveImage(resolvedPlugins, staging)));
+        }
+        staging.save();
+        if (!pluginFiles.isEmpty()) {
+            logger().info("Plugins staged: {}", staging);
+        }
+        if (snapshotDir != null) {
+            prepareSnapshotDir();
+            addFileSystemBind(snapshotDir.toAbsolutePath().toString(), SNAPSHOT_REPOSITORY_PATH, BindMode.READ_WRITE);
+            addEnv("path.repo", SNAPSHOT_REPOSITORY_PATH);
+        }
+        if (ephemeralDataSize != null) {
+            addEnv("cluster.routing.allocation.disk.threshold_enabled", "false");
+        }
+        configureResources();
+        if (waitStrategy instanceof ElasticsearchWaitStrategy) {
+            ((ElasticsearchWaitStrategy) waitStrategy).withStartupTimer(startupTimer);
+            // If X-Pack security is on, we need the credentials to check the cluster health
+            String password = getElasticPassword();
+            if (password != null) {
+                ((ElasticsearchWaitStrategy) waitStrategy).withBasicCredentials("elastic", password);
+            }
+        }
+        addExposedPort(ELASTICSEARCH_DEFAULT_PORT);
+        addExposedPort(ELASTICSEARCH_DEFAULT_TCP_PORT);
+        startupTimer.mark(StartupPhase.RESOLVE);
+    }
+
+    /**
+     * Use the checkpoint image if it exists. Otherwise we start from the usual image and the checkpoint
+     * is committed once the node is started.
+     */
+    private Future<String> resolveCheckpoint(List<String> plugins, PluginStaging staging) {
+        Preconditions.check("A checkpoint can not be used with fast ephemeral storage", ephemeralDataSize == null);
+        addEnv("path.data", CHECKPOINT_DATA_PATH);
+
+        MessageDigest digest = Digests.newDigest();
+        Digests.update(digest, computeImageHash(plugins, staging));
+        Digests.update(digest, checkpointName);
+        checkpointImage = IMAGE_CACHE_REPOSITORY + ":checkpoint-" + Digests.toHex(digest.digest()).substring(0, 32);
+        try {
+            DockerClientFactory.instance().client().inspectImageCmd(checkpointImage).exec();
+            logger().debug("Starting from checkpoint [{}] ([{}])", checkpointName, checkpointImage);
+            checkpointRestored = true;
+            return CompletableFuture.completedFuture(checkpointImage);
+        } catch (NotFoundException e) {
+            logger().debug("Checkpoint [{}] does not exist yet. It will be created as [{}].", checkpointName, checkpointImage);
+            checkpointRestored = false;
+            return resolveImage(plugins, staging);
+        }
+    }
+
+    /**
+     * Run the checkpoint setup and commit the container, data included
+     */
+    private void createCheckpoint() throws IOException {
+        logger().info("Creating checkpoint [{}]", checkpointName);
+        checkpointSetup.setup(this);
+        // Everything must be on disk before we commit
+        getRestClient().performRequest("POST", "/_flush", Collections.singletonMap("wait_if_ongoing", "true"));
+        int separator = checkpointImage.lastIndexOf(':');
+        DockerClientFactory.instance().client().commitCmd(getContainerId())
+                .withRepository(checkpointImage.substring(0, separator))
+                .withTag(checkpointImage.substring(separator + 1))
+                .exec();
+        logger().info("Checkpoint [{}] saved as [{}]", checkpointName, checkpointImage);
+    }
+
+    /**
+     * Wrap the image so we know when it has been pulled or built
+     */
+    private Future<String> timeImage(Future<String> image) {
+        return new Future<String>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return image.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return image.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return image.isDone();
+            }
+
+            @Override
+            public String get() throws InterruptedException, ExecutionException {
+                String name = image.get();
+                startupTimer.mark(StartupPhase.BUILD);
+                return name;
+            }
+
+            @Override
+            public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+                String name = image.get(timeout, unit);
+                startupTimer.mark(StartupPhase.BUILD);
+                return name;
+            }
+        };
+    }
+
+    void configureResources() {
+        String current = getEnvMap().get("ES_JAVA_OPTS");
+        if (computedJavaOpts == null || !computedJavaOpts.equals(current)) {
+            // Not the value we wrote last time so the user defined it
+            userJavaOpts = current;
+        }
+        List<String> javaOpts = new ArrayList<>();
+        if (userJavaOpts != null) {
+            javaOpts.add(userJavaOpts);
+        }
+        long heap;
+        if (heapSize != null) {
+            heap = parseSize(heapSize);
+        } else if (userJavaOpts != null && userJavaOpts.contains("-Xmx")) {
+            heap = -1;
+        } else {
+            heap = defaultHeapSize();
+        }
+        if (heap > 0) {
+            javaOpts.add("-Xms" + heap / MB + "m");
+            javaOpts.add("-Xmx" + heap / MB + "m");
+        }
+        if (garbageCollector != null) {
+            javaOpts.addAll(garbageCollector.getJvmOptions());
+        }
+        if (!javaOpts.isEmpty()) {
+            computedJavaOpts = String.join(" ", javaOpts);
+            addEnv("ES_JAVA_OPTS", computedJavaOpts);
+        }
+
+        memory = memoryLimit != null ? parseSize(memoryLimit) : heap > 0 ? heap * 2 + 512 * MB : -1;
+        if (memoryLock) {
+            addEnv("bootstrap.memory_lock", "true");
+        }
+        if (cpuLimit != null) {
+            addEnv("processors", String.valueOf((int) Math.ceil(cpuLimit)));
+        }
+        logger().debug("Using ES_JAVA_OPTS [{}], memory limit [{}], cpu limit [{}]", javaOpts, memory, cpuLimit);
+    }
+
+    private void configureHostConfig(CreateContainerCmd cmd) {
+        if (ephemeralDataSize != null) {
+            // Elasticsearch does not run as root so everybody needs to be able to write in the tmpfs
+            cmd.getHostConfig().withTmpFs(Collections.singletonMap(DATA_PATH, "rw,size=" + ephemeralDataSize + ",mode=1777"));
+        }
+        if (memory > 0) {
+            // No swap at all
+            cmd.getHostConfig().withMemory(memory).withMemorySwap(memory);
+        }
+        if (memoryLock) {
+            cmd.getHostConfig().withUlimits(new Ulimit[]{new Ulimit("memlock", -1, -1)});
+        }
+        if (cpuLimit != null) {
+            cmd.getHostConfig().withCpuPeriod(100_000).withCpuQuota((int) (cpuLimit * 100_000));
+        }
+    }
+
+    private long defaultHeapSize() {
+        try {
+            Long total = fetchDockerDaemonInfo().getMemTotal();
+            if (total != null) {
+                return Math.max(MIN_DEFAULT_HEAP, Math.min(MAX_DEFAULT_HEAP, total / 16 / MB * MB));
+            }
+        } catch (IOException e) {
+            logger().debug("Can not read docker host memory", e);
+        }
+        return 512 * MB;
+    }
+
+    /**
+     * Parse a size like 512m, 1g, 1024k or 1073741824
+     * @param size  Size
+     * @return the size in bytes
+     */
+    static long parseSize(String size) {
+        String value = size.trim().toLowerCase();
+        long unit = 1;
+        switch (value.charAt(value.length() - 1)) {
+            case 'k': unit = 1024; break;
+            case 'm': unit = MB; break;
+            case 'g': unit = 1024 * MB; break;
+            default: return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) * unit;
+    }
+
+    private void prepareSnapshotDir() {
+        try {
+            Files.createDirectories(snapshotDir);
+            // Elasticsearch does not run with our user id within the container but it needs to write there
+            Files.setPosixFilePermissions(snapshotDir, PosixFilePermissions.fromString("rwxrwxrwx"));
+        } catch (UnsupportedOperationException e) {
+            logger().debug("Can not change permissions of [{}]", snapshotDir);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not create snapshot repository dir [" + snapshotDir + "]", e);
+        }
+    }
+
+    @Override
+    protected void containerIsStarting(InspectContainerResponse containerInfo) {
+        super.containerIsStarting(containerInfo);
+        startupTimer.mark(StartupPhase.CREATE);
+    }
+
+    @Override
+    protected void containerIsStarted(InspectContainerResponse containerInfo) {
+        // In case another wait strategy has been used
+        startupTimer.mark(StartupPhase.CLUSTER_READY);
+        if (faultInjection) {
+            try {
+                httpProxy = new FaultInjectionProxy(getContainerIpAddress(), getMappedPort(ELASTICSEARCH_DEFAULT_PORT));
+                transportProxy = new FaultInjectionProxy(getContainerIpAddress(), getMappedPort(ELASTICSEARCH_DEFAULT_TCP_PORT));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not start the fault injection proxy", e);
+            }
+        }
+        if (snapshotDir != null) {
+            logger().debug("Registering snapshot repository [{}] from [{}]", SNAPSHOT_REPOSITORY_NAME, snapshotDir);
+            try {
+                getRestClient().performRequest("PUT", "/_snapshot/" + SNAPSHOT_REPOSITORY_NAME, Collections.emptyMap(),
+                        json("{\"type\":\"fs\",\"settings\":{\"location\":\"" + SNAPSHOT_REPOSITORY_PATH + "\"}}"));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not register snapshot repository", e);
+            }
+        }
+        try {
+            installIndexDefaults();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not install default index settings", e);
+        }
+        if (checkpointName != null && !checkpointRestored) {
+            try {
+                createCheckpoint();
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not create checkpoint [" + checkpointName + "]", e);
+            }
+        }
+        if (statsInterval != null) {
+            statsSampler = new NodeStatsSampler(getRestClient(), getContainerId(), statsInterval, NodeStatsSampler.DEFAULT_CAPACITY);
+            statsSampler.start();
+        }
+        logger().info("Elasticsearch started in [{}] ms: {}", startupTimer.getTotal().toMillis(), startupTimer.getTimings());
+        if (startupReport != null) {
+            writeStartupReport();
+        }
+    }
+
+    private void writeStartupReport() {
+        ObjectNode report = MAPPER.createObjectNode();
+        report.put("timestamp", Instant.now().toString());
+        report.put("image", getDockerImageName());
+        report.put("version", version);
+        ObjectNode phases = report.putObject("phases");
+        for (Map.Entry<StartupPhase, Duration> timing : startupTimer.getTimings().entrySet()) {
+            phases.put(timing.getKey().name().toLowerCase(Locale.ROOT), timing.getValue().toMillis());
+        }
+        report.put("total", startupTimer.getTotal().toMillis());
+        synchronized (STARTUP_REPORT_LOCK) {
+            try {
+                Path parent = startupReport.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+                Files.write(startupReport, (MAPPER.writeValueAsString(report) + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                logger().warn("Can not write the startup report to [{}]: {}", startupReport, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Install the index template which holds the default index settings if we need one.
+     * As it is removed by a full reset, it must be installed again after.
+     * @throws IOException if something goes wrong
+     */
+    void installIndexDefaults() throws IOException {
+        if (hasIndexDefaults()) {
+            logger().debug("Installing default index settings template [{}]", INDEX_DEFAULTS_TEMPLATE);
+            installIndexDefaults(getRestClient(), majorVersion());
+        }
+    }
+
+    /**
+     * @return the elastic user password or null if ELASTIC_PASSWORD is not set
+     */
+    String getElasticPassword() {
+        return getEnvMap().get("ELASTIC_PASSWORD");
+    }
+
+    /**
+     * @return true if this container needs the index defaults template
+     */
+    boolean hasIndexDefaults() {
+        return ephemeralDataSize != null;
+    }
+
+    static void installIndexDefaults(RestClient client, int majorVersion) throws IOException {
+        String patterns = majorVersion >= 6 ? "\"index_patterns\":[\"*\"]" : "\"template\":\"*\"";
+        client.performRequest("PUT", "/_template/" + INDEX_DEFAULTS_TEMPLATE, Collections.emptyMap(),
+                json("{" + patterns + ",\"order\":-1,\"settings\":{" +
+                        "\"index.translog.durability\":\"async\"," +
+                        "\"index.refresh_interval\":\"" + INDEX_DEFAULTS_REFRESH_INTERVAL.getSeconds() + "s\"," +
+                        "\"index.number_of_replicas\":0}}"));
+    }
+
+    /**
+     * @return the major version of elasticsearch, like 6 for 6.3.0
+     */
+    int majorVersion() {
+        return majorVersion(version);
+    }
+
+    /**
+     * @param version   Elasticsearch version like 6.3.0
+     * @return the major version, like 6 for 6.3.0, or 6 if it can not be read
+     */
+    static int majorVersion(String version) {
+        try {
+            return Integer.parseInt(version.substring(0, version.indexOf('.')));
+        } catch (RuntimeException e) {
+            LoggerFactory.getLogger(ElasticsearchContainer.class).debug("Can not read major version from [{}]", version);
+            return 6;
+        }
+    }
+
+    /**
+     * Save the current indices (and the cluster templates) as a fixture in the snapshot repository.
+     * An existing fixture with the same name is replaced.
+     * @param name  Fixture name (lowercase)
+     * @throws IOException if something goes wrong
+     */
+    public void snapshotFixture(String name) throws IOException {
+        checkSnapshotRepository();
+        if (hasFixture(name)) {
+            getRestClient().performRequest("DELETE", snapshotEndpoint(name));
+        }
+        getRestClient().performRequest("PUT", snapshotEndpoint(name), Collections.singletonMap("wait_for_completion", "true"),
+                json("{\"indices\":\"*,-.*\",\"include_global_state\":true}"));
+    }
+
+    /**
+     * Restore a fixture previously saved with {@link #snapshotFixture(String)}.
+     * Existing indices (but the system ones) are removed first.
+     * @param name  Fixture name (lowercase)
+     * @throws IOException if something goes wrong
+     */
+    public void restoreFixture(String name) throws IOException {
+        checkSnapshotRepository();
+        getRestClient().performRequest("DELETE", "/*,-.*");
+        getRestClient().performRequest("POST", snapshotEndpoint(name) + "/_restore", Collections.singletonMap("wait_for_completion", "true"),
+                json("{\"indices\":\"*,-.*\",\"include_global_state\":true}"));
+    }
+
+    /**
+     * Check if a fixture exists in the snapshot repository
+     * @param name  Fixture name (lowercase)
+     * @return true if the fixture has already been saved
+     * @throws IOException if something goes wrong
+     */
+    public boolean hasFixture(String name) throws IOException {
+        checkSnapshotRepository();
+        try {
+            getRestClient().performRequest("GET", snapshotEndpoint(name));
+            return true;
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void checkSnapshotRepository() {
+        if (snapshotDir == null) {
+            throw new IllegalStateException("No snapshot repository defined. Call withSnapshotRepository(Path) first.");
+        }
+    }
+
+    private static String snapshotEndpoint(String name) {
+        return "/_snapshot/" + SNAPSHOT_REPOSITORY_NAME + "/" + name;
+    }
+
+    static NStringEntity json(String json) {
+        return new NStringEntity(json, ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * Find the image to start. If we don't have to customize the official image, we just use it.
+     * Otherwise, the generated image is tagged with a hash of its inputs so it can be reused
+     * if it already exists in the local docker registry.
+     * @return the image name (as a Future)
+     */
+    private Future<String> resolveImage(List<String> plugins, PluginStaging staging) {
+        if (plugins.isEmpty() && securedKeys.isEmpty()) {
+            // The official image is pulled if we don't have it yet
+            return new RemoteDockerImage(baseUrl + ":" + version);
+        }
+
+        String imageName = IMAGE_CACHE_REPOSITORY + ":" + computeImageHash(plugins, staging);
+        Future<String> cached = RESOLVED_IMAGES.get(imageName);
+        if (cached instanceof ResolvedImage && ((ResolvedImage) cached).isResolved() && !imageExists(imageName)) {
+            logger().debug("Image [{}] has been removed from the docker host", imageName);
+            RESOLVED_IMAGES.remove(imageName, cached);
+        }
+        return RESOLVED_IMAGES.computeIfAbsent(imageName, name -> {
+            if (imageExists(name)) {
+                logger().debug("Reusing existing image [{}]", name);
+                return new ResolvedImage(name, CompletableFuture.completedFuture(name));
+            }
+            logger().debug("Image [{}] does not exist yet. Building it.", name);
+            return new ResolvedImage(name, buildImage(name, plugins, staging));
+        });
+    }
+
+    private static boolean imageExists(String name) {
+        try {
+            DockerClientFactory.instance().client().inspectImageCmd(name).exec();
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An image of {@link #RESOLVED_IMAGES} which removes itself from the cache if it can not be built,
+     * so the next container tries again
+     */
+    static final class ResolvedImage implements Future<String> {
+        private final String name;
+        private final Future<String> image;
+        private volatile boolean resolved = false;
+
+        ResolvedImage(String name, Future<String> image) {
+            this.name = name;
+            this.image = image;
+        }
+
+        /**
+         * @return true if the image has been built or found
+         */
+        boolean isResolved() {
+            return resolved;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return image.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return image.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return image.isDone();
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            try {
+                return resolved(image.get());
+            } catch (ExecutionException | RuntimeException e) {
+                RESOLVED_IMAGES.remove(name, this);
+                throw e;
+            }
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                return resolved(image.get(timeout, unit));
+            } catch (ExecutionException | RuntimeException e) {
+                RESOLVED_IMAGES.remove(name, this);
+                throw e;
+            }
+        }
+
+        private String resolved(String imageName) {
+            resolved = true;
+            return imageName;
+        }
+    }
+
+    private ImageFromDockerfile buildImage(String imageName, List<String> plugins, PluginStaging staging) {
+        ImageFromDockerfile dockerImage = new ImageFromDockerfile(imageName, false)
                 .withDockerfileFromBuilder(builder -> {
                     builder.from(baseUrl + ":" + version);
-                    if (pluginDir != null) {
+                    if (!pluginFiles.isEmpty()) {
                         // We need to map the local dir which contains plugins with the container
                         builder.copy("/tmp/plugins", "/tmp/plugins");
                     }
+                    // Everything is done in a single RUN command so we only commit one layer
+                    List<String> commands = new ArrayList<>();
                     for (String plugin : plugins) {
                         logger().debug("Installing plugin [{}]", plugin);
-                        builder.run("bin/elasticsearch-plugin install " + plugin + " --batch");
+                        commands.add("bin/elasticsearch-plugin install --batch " + plugin);
                     }
                     // If we have any secured key, we need to create the keystore
                     if (!securedKeys.isEmpty()) {
-                        builder.run("bin/elasticsearch-keystore create");
+                        commands.add("bin/elasticsearch-keystore create");
                     }
                     for (Map.Entry<String, String> secrets : securedKeys.entrySet()) {
                         logger().debug("Adding secured key [{}]", secrets.getKey());
-                        builder.run("echo '" + secrets.getValue() + "' | bin/elasticsearch-keystore add --stdin " + secrets.getKey());
+                        commands.add("echo '" + secrets.getValue().replace("'", "'\\''") + "' | bin/elasticsearch-keystore add --stdin " + secrets.getKey());
                     }
+                    builder.run(String.join(" && ", commands));
                     String s = builder.build();
 
                     logger().debug("Image generated: {}", s);
                 });
 
-        if (pluginDir != null) {
-            dockerImage.withFileFromFile("/tmp/plugins", this.pluginDir.toAbsolutePath().toFile());
+        // Zip files are streamed from where they are to the build context
+        for (Map.Entry<String, Path> pluginFile : pluginFiles.entrySet()) {
+            try {
+                staging.addToContext(dockerImage, "/tmp/plugins/" + pluginFile.getKey(), pluginFile.getValue());
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not read plugin [" + pluginFile.getValue() + "]", e);
+            }
         }
 
-        setImage(dockerImage);
-        addExposedPort(ELASTICSEARCH_DEFAULT_PORT);
-        addExposedPort(ELASTICSEARCH_DEFAULT_TCP_PORT);
+        return dockerImage;
+    }
+
+    /**
+     * Compute a deterministic hash of everything which ends up in the generated image:
+     * base url, version, plugins, content of the plugins zip files and secured settings.
+     * @return an hexadecimal SHA-256 hash (truncated)
+     */
+    String computeImageHash() {
+        return computeImageHash(plugins, newPluginStaging());
+    }
+
+    private String computeImageHash(List<String> plugins, PluginStaging staging) {
+        return computeImageHash(baseUrl, version, plugins, pluginFiles, securedKeys, staging);
+    }
+
+    /**
+     * Compute the hash of an image, which is part of its name
+     * @param baseUrl       Image base url
+     * @param version       Elasticsearch version
+     * @param plugins       Plugins to install
+     * @param pluginFiles   Plugins zip files, sorted by file name
+     * @param securedKeys   Secure settings, sorted by key
+     * @param staging       Gives the digests of the plugins zip files
+     * @return the hash
+     */
+    static String computeImageHash(String baseUrl, String version, List<String> plugins, Map<String, Path> pluginFiles,
+                                   Map<String, String> securedKeys, PluginStaging staging) {
+        MessageDigest digest = Digests.newDigest();
+        Digests.update(digest, baseUrl);
+        Digests.update(digest, version);
+        for (String plugin : plugins) {
+            Digests.update(digest, plugin);
+        }
+        // Digests of unchanged zip files come from the manifest so we don't read them again
+        for (Map.Entry<String, Path> pluginFile : pluginFiles.entrySet()) {
+            Digests.update(digest, pluginFile.getKey());
+            try {
+                Digests.update(digest, staging.digest(pluginFile.getValue()));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not read plugin [" + pluginFile.getValue() + "]", e);
+            }
+        }
+        // Values are part of the image as well so we need them in the hash
+        for (Map.Entry<String, String> secrets : securedKeys.entrySet()) {
+            Digests.update(digest, secrets.getKey());
+            Digests.update(digest, secrets.getValue());
+        }
+        return Digests.toHex(digest.digest()).substring(0, 32);
     }
 
     public HttpHost getHost() {
+        if (httpProxy != null) {
+            return new HttpHost(httpProxy.getHost(), httpProxy.getPort());
+        }
         return new HttpHost(getContainerIpAddress(), getMappedPort(ELASTICSEARCH_DEFAULT_PORT));
     }
+
+    /**
+     * Get a Rest client connected to this container. It uses the elastic user if ELASTIC_PASSWORD is set.
+     * The client is created once and is closed when the container stops.
+     * @return a Rest client
+     */
+    public synchronized RestClient getRestClient() {
+        if (restClient == null) {
+            final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            String password = getElasticPassword();
+            if (password != null) {
+                credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("elastic", password));
+            }
+            restClient = RestClient.builder(getHost())
+                    .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider))
+                    .build();
+        }
+        return restClient;
+    }
+
+    @Override
+    public void stop() {
+        if (statsSampler != null) {
+            statsSampler.stop();
+            if (statsReport != null) {
+                try {
+                    statsSampler.writeReport(statsReport);
+                } catch (IOException e) {
+                    logger().warn("Can not write the stats report to [{}]: {}", statsReport, e.getMessage());
+                }
+            }
+        }
+        synchronized (this) {
+            if (restClient != null) {
+                try {
+                    restClient.close();
+                } catch (IOException e) {
+                    logger().warn("Error while closing the rest client", e);
+                }
+                restClient = null;
+            }
+        }
+        if (httpProxy != null) {
+            httpProxy.close();
+            httpProxy = null;
+        }
+        if (transportProxy != null) {
+            transportProxy.close();
+            transportProxy = null;
+        }
+        super.stop();
+    }
 }
@@ -0,0 +1,668 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.github.dockerjava.api.model.Container;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.elasticsearch.client.RestClient;
+import org.rnorth.ducttape.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.utility.ResourceReaper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * A pool of warm elasticsearch nodes shared by all the JVMs of a machine, like the forks of a Surefire run.
+ * <p>
+ * The JVMs coordinate through files in a directory. The first one which finds no pool creates it in
+ * {@code pool.properties}. Every JVM which uses the pool holds the file lock of its own {@code member-*.lock} file,
+ * and leases a node by taking the file lock of one of its slots ({@code slot-N.lock}). Nodes are started on demand,
+ * when all the started ones are leased, up to the size of the pool. A node is reset when it is released so the next
+ * lease gets a clean node in a few milliseconds.
+ * <p>
+ * The nodes do not belong to the JVM which started them: the last JVM which leaves the pool stops them, whoever
+ * started them. If all the JVMs died without leaving, the next one which uses the same pool reuses the nodes, and
+ * the first pool used by a JVM removes the nodes of the pools nobody uses anymore.
+ * The password of the elastic user is never written to the directory. Every JVM reads it from its own factory.
+ * <pre>
+ * ElasticsearchContainerPool pool = ElasticsearchContainerPool.forConfiguration("my-tests", 4, ElasticsearchContainer::new);
+ * try (ElasticsearchContainerPool.Lease lease = pool.acquire(Duration.ofMinutes(5))) {
+ *     lease.getRestClient().performRequest("GET", "/");
+ * }
+ * </pre>
+ */
+public class ElasticsearchContainerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchContainerPool.class);
+
+    /**
+     * Where pools coordinate. Defaults to the elasticsearch.pool.dir system property or to a directory in java.io.tmpdir.
+     */
+    public static final Path DEFAULT_DIR = Paths.get(System.getProperty("elasticsearch.pool.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "testcontainers-elasticsearch-pool").toString()));
+
+    /**
+     * Maximum number of nodes in a pool. Defaults to the elasticsearch.pool.size system property or to 2.
+     * Set it to the number of forks which run tests at the same time.
+     */
+    public static final int DEFAULT_SIZE = Integer.getInteger("elasticsearch.pool.size", 2);
+
+    private static final String POOL_LOCK = "pool.lock";
+    private static final String POOL_FILE = "pool.properties";
+    private static final String MEMBER_PREFIX = "member-";
+    private static final String SESSION_PREFIX = "testcontainers-elasticsearch-pool-";
+    // Labels of the nodes, so we can find them when nobody uses their pool anymore
+    static final String POOL_DIR_LABEL = "fr.pilato.elasticsearch.containers.pool.dir";
+    static final String POOL_ID_LABEL = "fr.pilato.elasticsearch.containers.pool.id";
+    private static final long MAX_BACKOFF_MILLIS = 200;
+    // How long an exiting JVM waits for the other JVMs to be done with the pool file
+    private static final Duration LEAVE_TIMEOUT = Duration.ofSeconds(5);
+
+    private static final Map<Path, ElasticsearchContainerPool> POOLS = new HashMap<>();
+    private static final AtomicBoolean SWEPT = new AtomicBoolean();
+
+    private final Path dir;
+    private final int size;
+    private final Supplier<ElasticsearchContainer> factory;
+
+    // The nodes this JVM started. They are stopped by the last JVM which leaves the pool.
+    private final List<ElasticsearchContainer> containers = new ArrayList<>();
+
+    // Locked as long as this JVM uses the pool
+    private Path memberFile;
+    private FileChannel memberChannel;
+
+    // The pool we joined
+    private Properties pool;
+    private String password;
+
+    // A JVM can not take the same file lock twice so we need to know which slots we are using
+    private final Set<Integer> leased = new HashSet<>();
+
+    /**
+     * Get the pool for a configuration. All the JVMs which use the same key share the same nodes.
+     * @param key       Identifies the configuration of the nodes, like a version and a list of plugins
+     * @param size      Maximum number of nodes if this JVM creates the pool
+     * @param factory   Creates a node which is not started yet
+     * @return the pool
+     */
+    public static synchronized ElasticsearchContainerPool forConfiguration(String key, int size, Supplier<ElasticsearchContainer> factory) {
+        String hash = Digests.toHex(Digests.newDigest().digest(key.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+        return POOLS.computeIfAbsent(DEFAULT_DIR.resolve(hash), dir -> new ElasticsearchContainerPool(dir, size, factory));
+    }
+
+    ElasticsearchContainerPool(Path dir, int size, Supplier<ElasticsearchContainer> factory) {
+        Preconditions.check("A pool needs at least one node", size > 0);
+        this.dir = dir;
+        this.size = size;
+        this.factory = factory;
+    }
+
+    /**
+     * Lease a node. Close the lease to give it back.
+     * @param timeout   How long to wait for a node to be started or to be free
+     * @return the lease
+     * @throws IOException if no node could be leased
+     */
+    public Lease acquire(Duration timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        long backoff = 10;
+        try {
+            while (true) {
+                Properties current = join(deadline);
+                Lease lease = tryLease(current, deadline);
+                if (lease != null) {
+                    return lease;
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("No elasticsearch node available in pool [" + dir + "] after " + timeout.toMillis() + " ms");
+                }
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an elasticsearch node", e);
+        }
+    }
+
+    /**
+     * Find the pool to use, creating it if nobody did
+     */
+    private synchronized Properties join(long deadline) throws IOException, InterruptedException {
+        if (pool != null) {
+            return pool;
+        }
+        if (SWEPT.compareAndSet(false, true)) {
+            sweep(dir);
+        }
+        Files.createDirectories(dir);
+        try (FileChannel channel = FileChannel.open(dir.resolve(POOL_LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Closing the channel releases the lock
+            lock(channel, deadline);
+            Properties published = readPool(dir);
+            if (published == null) {
+                published = new Properties();
+                published.setProperty("id", UUID.randomUUID().toString());
+                published.setProperty("size", String.valueOf(size));
+                writePool(published);
+                logger.info("Created a pool of up to {} elasticsearch nodes in [{}]", size, dir);
+            } else {
+                logger.debug("Joining elasticsearch pool [{}] in [{}]", published.getProperty("id"), dir);
+            }
+            password = factory.get().getElasticPassword();
+            if (memberChannel == null) {
+                becomeMember();
+            }
+            pool = published;
+            return pool;
+        }
+    }
+
+    /**
+     * Start the node of a slot we locked and publish it
+     * @return the pool with the new node or null if the pool has been stopped in the meantime
+     */
+    private Properties startNode(int slot, String id, long deadline) throws IOException, InterruptedException {
+        logger.info("Starting node {} of elasticsearch pool [{}]", slot, id);
+        // The reaper of this JVM must not remove the node when it exits as other JVMs may still use it
+        ElasticsearchContainer container = factory.get().withSessionId(SESSION_PREFIX + id);
+        container.withLabel(POOL_DIR_LABEL, dir.toAbsolutePath().toString());
+        container.withLabel(POOL_ID_LABEL, id);
+        try {
+            container.start();
+        } catch (RuntimeException e) {
+            container.stop();
+            throw new IOException("Can not start a node of elasticsearch pool [" + dir + "]", e);
+        }
+        // The last JVM which leaves the pool stops the nodes, so this one must not stop it when it exits
+        ResourceReaper.instance().unregisterContainer(container.getContainerId());
+        adopt(container);
+
+        try (FileChannel channel = FileChannel.open(dir.resolve(POOL_LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            lock(channel, deadline);
+            Properties published = readPool(dir);
+            if (published == null || !published.getProperty("id").equals(id)) {
+                logger.debug("Elasticsearch pool [{}] has been stopped while node {} was starting", id, slot);
+                disown(container);
+                container.stop();
+                return null;
+            }
+            published.setProperty("majorVersion", String.valueOf(container.majorVersion()));
+            published.setProperty("indexDefaults", String.valueOf(container.hasIndexDefaults()));
+            published.setProperty("slot." + slot, container.getHost().toHostString());
+            published.setProperty("container." + slot, container.getContainerId());
+            writePool(published);
+            return published;
+        }
+    }
+
+    private void writePool(Properties properties) throws IOException {
+        Path tmp = Files.createTempFile(dir, POOL_FILE, ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp)) {
+            properties.store(os, "Elasticsearch pool");
+        }
+        Files.move(tmp, dir.resolve(POOL_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void becomeMember() throws IOException {
+        Path file = dir.resolve(MEMBER_PREFIX + UUID.randomUUID() + ".lock");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        channel.lock();
+        memberFile = file;
+        memberChannel = channel;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::leave, "elasticsearch-pool-leave"));
+    }
+
+    /**
+     * Stop using the pool. If no other JVM uses it, the nodes are stopped.
+     */
+    synchronized void leave() {
+        if (memberChannel == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + LEAVE_TIMEOUT.toNanos();
+        try (FileChannel channel = FileChannel.open(dir.resolve(POOL_LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            lock(channel, deadline);
+            memberChannel.close();
+            memberChannel = null;
+            Files.deleteIfExists(memberFile);
+            if (hasMembers(dir)) {
+                logger.debug("Leaving elasticsearch pool [{}] to the other JVMs", dir);
+                return;
+            }
+            Properties published = readPool(dir);
+            Files.deleteIfExists(dir.resolve(POOL_FILE));
+            stopNodes(published);
+        } catch (IOException e) {
+            // If we were the last member, the next JVM which uses the pool gets the nodes
+            logger.warn("Can not leave elasticsearch pool [{}]", dir, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeMember();
+            pool = null;
+        }
+    }
+
+    private void closeMember() {
+        if (memberChannel != null) {
+            try {
+                // Closing the channel releases the lock
+                memberChannel.close();
+            } catch (IOException e) {
+                logger.warn("Can not release [{}]", memberFile, e);
+            }
+            memberChannel = null;
+        }
+    }
+
+    /**
+     * @return true if a JVM uses the pool. The files of the JVMs which died without leaving are removed.
+     */
+    private static boolean hasMembers(Path dir) throws IOException {
+        boolean members = false;
+        List<Path> stale = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, MEMBER_PREFIX + "*.lock")) {
+            for (Path file : files) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    if (tryLock(channel) == null) {
+                        members = true;
+                    } else {
+                        stale.add(file);
+                    }
+                } catch (NoSuchFileException ignored) {
+                }
+            }
+        }
+        for (Path file : stale) {
+            Files.deleteIfExists(file);
+        }
+        return members;
+    }
+
+    /**
+     * Remove the nodes of the pools nobody uses anymore, like the pools of JVMs which were killed
+     * or whose directory has been removed. The nodes of our own pool are kept so we can reuse them.
+     */
+    private static void sweep(Path ours) {
+        Map<Path, Map<String, String>> nodes = new HashMap<>();
+        try {
+            for (Container node : DockerClientFactory.instance().client().listContainersCmd()
+                    .withShowAll(true)
+                    .withLabelFilter(Collections.singletonList(POOL_DIR_LABEL))
+                    .exec()) {
+                Path dir = Paths.get(node.getLabels().get(POOL_DIR_LABEL));
+                if (!dir.equals(ours.toAbsolutePath())) {
+                    nodes.computeIfAbsent(dir, d -> new HashMap<>()).put(node.getId(), node.getLabels().get(POOL_ID_LABEL));
+                }
+            }
+            for (Map.Entry<Path, Map<String, String>> entry : nodes.entrySet()) {
+                for (String containerId : orphans(entry.getKey(), entry.getValue())) {
+                    logger.info("Removing node [{}] of unused elasticsearch pool [{}]", containerId, entry.getKey());
+                    ResourceReaper.instance().stopAndRemoveContainer(containerId);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Can not remove the nodes of unused elasticsearch pools", e);
+        }
+    }
+
+    /**
+     * Find the nodes of a pool directory which nobody uses anymore. If no JVM uses the pool, it is removed.
+     * @param dir   The pool directory
+     * @param nodes The pool id of the nodes, by container id
+     * @return the ids of the containers to remove
+     */
+    static Set<String> orphans(Path dir, Map<String, String> nodes) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return nodes.keySet();
+        }
+        try (FileChannel channel = FileChannel.open(dir.resolve(POOL_LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (tryLock(channel) == null) {
+                // Someone is using the pool right now. We will see next time.
+                return Collections.emptySet();
+            }
+            Properties published = readPool(dir);
+            if (published != null && !hasMembers(dir)) {
+                Files.delete(dir.resolve(POOL_FILE));
+                published = null;
+            }
+            Set<String> orphans = new HashSet<>();
+            for (Map.Entry<String, String> node : nodes.entrySet()) {
+                // Nodes of a pool which has been replaced or which nobody uses anymore
+                if (published == null || !published.getProperty("id").equals(node.getValue())) {
+                    orphans.add(node.getKey());
+                }
+            }
+            return orphans;
+        }
+    }
+
+    /**
+     * Stop the nodes of a pool, whoever started them
+     */
+    private void stopNodes(Properties published) {
+        Set<String> ours = new HashSet<>();
+        for (ElasticsearchContainer container : disownAll()) {
+            ours.add(container.getContainerId());
+            container.stop();
+        }
+        if (published == null) {
+            return;
+        }
+        logger.info("Stopping elasticsearch pool [{}]", published.getProperty("id"));
+        int slots = Integer.parseInt(published.getProperty("size"));
+        for (int slot = 0; slot < slots; slot++) {
+            String containerId = published.getProperty("container." + slot);
+            if (containerId != null && !ours.contains(containerId)) {
+                ResourceReaper.instance().stopAndRemoveContainer(containerId);
+            }
+        }
+    }
+
+    private synchronized void adopt(ElasticsearchContainer container) {
+        containers.add(container);
+    }
+
+    private synchronized void disown(ElasticsearchContainer container) {
+        containers.remove(container);
+    }
+
+    private synchronized List<ElasticsearchContainer> disownAll() {
+        List<ElasticsearchContainer> all = new ArrayList<>(containers);
+        containers.clear();
+        return all;
+    }
+
+    private static Properties readPool(Path dir) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(dir.resolve(POOL_FILE))) {
+            properties.load(is);
+            return properties;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private Lease tryLease(Properties joined, long deadline) throws IOException, InterruptedException {
+        String id = joined.getProperty("id");
+        // Other JVMs start nodes, so we need to read the pool again
+        Properties current = readPool(dir);
+        if (current == null || !current.getProperty("id").equals(id)) {
+            logger.debug("Elasticsearch pool [{}] has been stopped", id);
+            forget(joined);
+            return null;
+        }
+        int slots = Integer.parseInt(current.getProperty("size"));
+        // Use a started node if one is free
+        for (int slot = 0; slot < slots; slot++) {
+            if (current.getProperty("slot." + slot) == null) {
+                continue;
+            }
+            FileChannel channel = lockSlot(slot);
+            if (channel == null) {
+                continue;
+            }
+            Lease lease = new Lease(slot, current, channel);
+            if (!lease.isAlive()) {
+                logger.debug("Node [{}] of pool [{}] does not answer", lease.getHost(), id);
+                lease.unlock();
+                abandon(current, deadline);
+                return null;
+            }
+            logger.debug("Leased node [{}] from pool [{}]", lease.getHost(), dir);
+            return lease;
+        }
+        // Otherwise start a new one
+        for (int slot = 0; slot < slots; slot++) {
+            if (current.getProperty("slot." + slot) != null) {
+                continue;
+            }
+            FileChannel channel = lockSlot(slot);
+            if (channel == null) {
+                // Another JVM is starting it
+                continue;
+            }
+            try {
+                Properties latest = readPool(dir);
+                // The node may have been started since we read the pool
+                Properties started = latest == null || latest.getProperty("slot." + slot) != null ? null : startNode(slot, id, deadline);
+                if (started != null) {
+                    Lease lease = new Lease(slot, started, channel);
+                    logger.debug("Leased new node [{}] from pool [{}]", lease.getHost(), dir);
+                    return lease;
+                }
+            } catch (IOException | RuntimeException | InterruptedException e) {
+                unlockSlot(slot, channel);
+                throw e;
+            }
+            unlockSlot(slot, channel);
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * Take the lock of a slot
+     * @return the locked channel or null if the slot is used
+     */
+    private FileChannel lockSlot(int slot) throws IOException {
+        synchronized (this) {
+            if (!leased.add(slot)) {
+                return null;
+            }
+        }
+        FileChannel channel = FileChannel.open(dir.resolve("slot-" + slot + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (tryLock(channel) == null) {
+            unlockSlot(slot, channel);
+            return null;
+        }
+        return channel;
+    }
+
+    private void unlockSlot(int slot, FileChannel channel) throws IOException {
+        try {
+            // Closing the channel releases the lock
+            channel.close();
+        } finally {
+            released(slot);
+        }
+    }
+
+    /**
+     * Stop a pool whose nodes do not answer anymore, so the next join starts a new one
+     */
+    private void abandon(Properties dead, long deadline) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(dir.resolve(POOL_LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            lock(channel, deadline);
+            Properties published = readPool(dir);
+            // Another JVM may already have replaced it
+            if (published != null && published.getProperty("id").equals(dead.getProperty("id"))) {
+                Files.delete(dir.resolve(POOL_FILE));
+                stopNodes(published);
+            }
+        }
+        forget(dead);
+    }
+
+    private synchronized void forget(Properties dead) {
+        if (pool != null && pool.getProperty("id").equals(dead.getProperty("id"))) {
+            pool = null;
+        }
+    }
+
+    private synchronized void released(int slot) {
+        leased.remove(slot);
+    }
+
+    private void lock(FileChannel channel, long deadline) throws IOException, InterruptedException {
+        while (tryLock(channel) == null) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Elasticsearch pool [" + dir + "] is still busy");
+            }
+            Thread.sleep(MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Another pool of this JVM holds it
+            return null;
+        }
+    }
+
+    /**
+     * A node leased from the pool
+     */
+    public final class Lease implements AutoCloseable {
+        private final int slot;
+        private final HttpHost host;
+        private final String password;
+        private final int majorVersion;
+        private final boolean indexDefaults;
+        private final FileChannel channel;
+        private RestClient restClient;
+
+        private Lease(int slot, Properties pool, FileChannel channel) {
+            this.slot = slot;
+            this.host = HttpHost.create(pool.getProperty("slot." + slot));
+            this.password = ElasticsearchContainerPool.this.password;
+            this.majorVersion = Integer.parseInt(pool.getProperty("majorVersion"));
+            this.indexDefaults = Boolean.parseBoolean(pool.getProperty("indexDefaults"));
+            this.channel = channel;
+        }
+
+        public HttpHost getHost() {
+            return host;
+        }
+
+        /**
+         * @return the elastic user password or null if there is none
+         */
+        public String getPassword() {
+            return password;
+        }
+
+        /**
+         * Get a Rest client connected to the node. It is closed with the lease.
+         * @return a Rest client
+         */
+        public synchronized RestClient getRestClient() {
+            if (restClient == null) {
+                final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+                if (password != null) {
+                    credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("elastic", password));
+                }
+                restClient = RestClient.builder(host)
+                        .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider))
+                        .build();
+            }
+            return restClient;
+        }
+
+        /**
+         * Remove everything from the node, like {@link ElasticsearchResource#reset(IndexNamespace)}
+         * @param namespace The namespace to clean. If null, everything is removed.
+         * @throws IOException if something goes wrong
+         */
+        public void reset(IndexNamespace namespace) throws IOException {
+            ClusterReset.reset(getRestClient(), namespace);
+            if (namespace == null && indexDefaults) {
+                ElasticsearchContainer.installIndexDefaults(getRestClient(), majorVersion);
+            }
+        }
+
+        /**
+         * @return true if the node creates indices with the index defaults template
+         */
+        boolean hasIndexDefaults() {
+            return indexDefaults;
+        }
+
+        private boolean isAlive() {
+            try {
+                getRestClient().performRequest("HEAD", "/");
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Reset the node and give it back to the pool
+         * @throws IOException if the node could not be reset. It is given back anyway.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                reset(null);
+            } finally {
+                unlock();
+            }
+        }
+
+        private void unlock() throws IOException {
+            try {
+                synchronized (this) {
+                    if (restClient != null) {
+                        restClient.close();
+                        restClient = null;
+                    }
+                }
+            } finally {
+                unlockSlot(slot, channel);
+            }
+        }
+    }
+}
@@ -23,17 +23,24 @@ import org.apache.http.HttpHost;
 import org.jetbrains.annotations.Nullable;
 import org.junit.rules.ExternalResource;
 import org.rnorth.ducttape.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.TreeMap;
 
 import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_BASE_URL;
 import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_VERSION;
@@ -43,7 +50,9 @@ import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICS
  */
 public class ElasticsearchResource extends ExternalResource {
 
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchResource.class);
     private static final String DEFAULT_RESOURCE_NAME = "elasticsearch.properties";
+    private static final Duration POOL_ACQUIRE_TIMEOUT = Duration.ofSeconds(Long.getLong("elasticsearch.pool.acquire.timeout", 300));
     static final String FALLBACK_RESOURCE_NAME = "elasticsearch-default.properties";
     private final String baseUrl;
     private final String version;
@@ -51,7 +60,22 @@ public class ElasticsearchResource extends ExternalResource {
     private final String password;
     private final List<String> plugins;
     private final Map<String, String> securedSettings;
+    private boolean shared;
+    private boolean async;
+    private boolean pooled;
+    private boolean lazy;
+    private Path cassette;
+    // Parsed when we start, so a wrong value does not fail the class initialization
+    @Nullable private String cassetteModeSetting;
+    @Nullable private CassetteMode cassetteMode;
     @Nullable private ElasticsearchContainer delegate;
+    @Nullable private ElasticsearchContainerPool.Lease lease;
+    @Nullable private CompletableFuture<ElasticsearchContainer> starting;
+    @Nullable private RestClientFactory clientFactory;
+    @Nullable private RefreshController refreshController;
+    @Nullable private CassetteServer cassetteServer;
+    private boolean replaying;
+    private volatile boolean started;
 
     public ElasticsearchResource() {
         this(DEFAULT_RESOURCE_NAME);
@@ -83,11 +107,23 @@ public class ElasticsearchResource extends ExternalResource {
         String propPlugins;
         String propPluginDir;
         String propPassword;
+        String propShared;
+        String propAsync;
+        String propPooled;
+        String propLazy;
+        String propCassette;
+        String propCassetteMode;
         String defaultBaseUrl = null;
         String defaultVersion = null;
         String defaultPlugins = null;
         String defaultPluginDir = null;
         String defaultPassword = null;
+        String defaultShared = null;
+        String defaultAsync = null;
+        String defaultPooled = null;
+        String defaultLazy = null;
+        String defaultCassette = null;
+        String defaultCassetteMode = null;
         Properties props = new Properties();
         try {
             props.load(ElasticsearchResource.class.getResourceAsStream(FALLBACK_RESOURCE_NAME));
@@ -96,6 +132,12 @@ public class ElasticsearchResource extends ExternalResource {
             defaultPlugins = props.getProperty("plugins");
             defaultPluginDir = props.getProperty("pluginDir");
             defaultPassword = props.getProperty("password");
+            defaultShared = props.getProperty("shared");
+            defaultAsync = props.getProperty("async");
+            defaultPooled = props.getProperty("pooled");
+            defaultLazy = props.getProperty("lazy");
+            defaultCassette = props.getProperty("cassette");
+            defaultCassetteMode = props.getProperty("cassetteMode");
         } catch (IOException ignored) {
             // This can normally never happen unless someone modifies the JAR file o_O
         }
@@ -108,12 +150,24 @@ public class ElasticsearchResource extends ExternalResource {
                 propPlugins = props.getProperty("plugins", defaultPluginDir);
                 propPluginDir = props.getProperty("pluginDir", defaultPluginDir);
                 propPassword = props.getProperty("password", defaultPassword);
+                propShared = props.getProperty("shared", defaultShared);
+                propAsync = props.getProperty("async", defaultAsync);
+                propPooled = props.getProperty("pooled", defaultPooled);
+                propLazy = props.getProperty("lazy", defaultLazy);
+                propCassette = props.getProperty("cassette", defaultCassette);
+                propCassetteMode = props.getProperty("cassetteMode", defaultCassetteMode);
             } else {
                 propBaseUrl = defaultBaseUrl;
                 propVersion = defaultVersion;
                 propPlugins = defaultPlugins;
                 propPluginDir = defaultPluginDir;
                 propPassword = defaultPassword;
+                propShared = defaultShared;
+                propAsync = defaultAsync;
+                propPooled = defaultPooled;
+                propLazy = defaultLazy;
+                propCassette = defaultCassette;
+                propCassetteMode = defaultCassetteMode;
             }
         } catch (IOException e) {
             // We might get that exception if the user provides a badly formatted property file
@@ -122,6 +176,12 @@ public class ElasticsearchResource extends ExternalResource {
             propPlugins = null;
             propPluginDir = null;
             propPassword = null;
+            propShared = null;
+            propAsync = null;
+            propPooled = null;
+            propLazy = null;
+            propCassette = null;
+            propCassetteMode = null;
         }
         baseUrl = propBaseUrl;
         version = propVersion;
@@ -129,6 +189,80 @@ public class ElasticsearchResource extends ExternalResource {
         pluginDir = propPluginDir == null ? null : Paths.get(propPluginDir);
         password = propPassword;
         securedSettings = Collections.emptyMap();
+        shared = Boolean.parseBoolean(propShared);
+        async = Boolean.parseBoolean(propAsync);
+        pooled = Boolean.parseBoolean(propPooled);
+        lazy = Boolean.parseBoolean(propLazy);
+        cassette = propCassette == null ? null : Paths.get(propCassette);
+        cassetteModeSetting = propCassetteMode;
+    }
+
+    /**
+     * Share the container with all the other resources of this JVM which have the same configuration.
+     * The container is started by the first resource and stopped when the last resource does not need it anymore.
+     * It can also be activated with {@code shared=true} in the properties file.
+     * @param shared true to share the container
+     * @return this
+     */
+    public ElasticsearchResource withShared(boolean shared) {
+        this.shared = shared;
+        return this;
+    }
+
+    /**
+     * Start the container in the background. The test (or other rules) can do other things while elasticsearch
+     * starts and the first call which needs the container waits for it to be ready.
+     * It can also be activated with {@code async=true} in the properties file.
+     * @param async true to start the container in the background
+     * @return this
+     */
+    public ElasticsearchResource withAsyncStart(boolean async) {
+        this.async = async;
+        return this;
+    }
+
+    /**
+     * Lease a warm node from a pool shared by all the JVMs of the machine (like parallel Surefire forks)
+     * instead of starting a container. The node is reset when the resource gives it back.
+     * With a pool, {@link #getContainer()} returns null as the container may run in another JVM.
+     * It can also be activated with {@code pooled=true} in the properties file.
+     * @param pooled true to use a pool
+     * @return this
+     * @see ElasticsearchContainerPool
+     */
+    public ElasticsearchResource withPooled(boolean pooled) {
+        this.pooled = pooled;
+        return this;
+    }
+
+    /**
+     * Do not start anything before the first call which needs the node ({@link #getHost()}, {@link #getContainer()},
+     * {@link #clientFactory()}, {@link #reset()}...), so test classes whose tests are all skipped or filtered out
+     * never boot elasticsearch. When several threads need the node at the same time, only one starts it.
+     * It can also be activated with {@code lazy=true} in the properties file.
+     * @param lazy true to start on first use
+     * @return this
+     */
+    public ElasticsearchResource withLazyStart(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    /**
+     * Record the requests sent to {@link #getHost()} and their responses into a cassette file, or replay them
+     * without starting any container. Replaying only works if the tests send the same requests as when they
+     * have been recorded. {@link #reset()} does nothing when replaying and {@link #getContainer()} returns null.
+     * It can also be defined with {@code cassette=path/to/file.ndjson} and {@code cassetteMode=replay} in the
+     * properties file.
+     * @param cassette  The cassette file, gzipped if its name ends with .gz
+     * @param mode      Record, replay or auto (replay if the file exists). Defaults to the
+     *                  elasticsearch.cassette.mode system property if any, auto otherwise.
+     * @return this
+     */
+    public ElasticsearchResource withCassette(Path cassette, CassetteMode mode) {
+        this.cassette = cassette;
+        this.cassetteMode = mode;
+        return this;
     }
 
     private List<String> generateFromCommaSeparatedString(String value) {
@@ -146,30 +280,199 @@ public class ElasticsearchResource extends ExternalResource {
         Preconditions.check("version can't be null", version != null);
         Preconditions.check("plugins can't be null. Should be empty list instead", plugins != null);
         Preconditions.check("securedSettings can't be null. Should be empty map instead", securedSettings != null);
-        delegate = new ElasticsearchContainer()
+        if (lazy) {
+            logger.debug("Elasticsearch will start on first use");
+            return;
+        }
+        start();
+    }
+
+    /**
+     * Start elasticsearch if it's not started yet. Only the first caller starts it, the other ones wait for it.
+     */
+    private void ensureStarted() {
+        if (!started) {
+            synchronized (this) {
+                if (!started) {
+                    start();
+                }
+            }
+        }
+    }
+
+    private void start() {
+        if (cassette != null) {
+            CassetteMode mode = cassetteMode();
+            replaying = mode == CassetteMode.REPLAY || (mode == CassetteMode.AUTO && Files.exists(cassette));
+            if (replaying) {
+                try {
+                    cassetteServer = CassetteServer.replay(cassette);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Can not replay cassette [" + cassette + "]", e);
+                }
+                started = true;
+                return;
+            }
+        }
+        if (pooled) {
+            try {
+                lease = ElasticsearchContainerPool.forConfiguration(sharedKey(), ElasticsearchContainerPool.DEFAULT_SIZE, this::createContainer)
+                        .acquire(POOL_ACQUIRE_TIMEOUT);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not lease an elasticsearch node", e);
+            }
+        } else if (async && cassette == null) {
+            starting = CompletableFuture.supplyAsync(this::startContainer, ElasticsearchContainer.START_EXECUTOR);
+        } else {
+            delegate = startContainer();
+        }
+        if (cassette != null) {
+            try {
+                cassetteServer = CassetteServer.record(cassette, lease != null ? lease.getHost() : delegate.getHost());
+            } catch (IOException e) {
+                // Stop what we just started
+                started = true;
+                after();
+                throw new IllegalStateException("Can not record cassette [" + cassette + "]", e);
+            }
+        }
+        started = true;
+    }
+
+    /**
+     * @return the cassette mode given to {@link #withCassette(Path, CassetteMode)}, or else the one of the properties
+     * file, or else the one of the elasticsearch.cassette.mode system property, or else auto
+     */
+    private CassetteMode cassetteMode() {
+        if (cassetteMode == null) {
+            cassetteMode = CassetteMode.parse(cassetteModeSetting != null ? cassetteModeSetting :
+                    System.getProperty("elasticsearch.cassette.mode", "auto"));
+        }
+        return cassetteMode;
+    }
+
+    /**
+     * @return true once elasticsearch has been started (or is being started in the background)
+     */
+    boolean isStarted() {
+        return started;
+    }
+
+    private ElasticsearchContainer startContainer() {
+        if (shared) {
+            return SharedContainers.acquire(sharedKey(), this::createContainer);
+        }
+        ElasticsearchContainer container = createContainer();
+        container.start();
+        return container;
+    }
+
+    /**
+     * Get the started container, waiting for it if it's being started in the background
+     */
+    private ElasticsearchContainer startedContainer() {
+        if (starting != null) {
+            try {
+                delegate = starting.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        Preconditions.check("delegate must have been created by before()", delegate != null);
+        return delegate;
+    }
+
+    private ElasticsearchContainer createContainer() {
+        ElasticsearchContainer container = new ElasticsearchContainer()
                 .withBaseUrl(baseUrl)
                 .withVersion(version)
                 .withPluginDir(pluginDir);
 
         for (String plugin : plugins) {
-            delegate.withPlugin(plugin);
+            container.withPlugin(plugin);
         }
 
         for (Map.Entry<String, String> securedSetting : securedSettings.entrySet()) {
-            delegate.withSecureSetting(securedSetting.getKey(), securedSetting.getValue());
+            container.withSecureSetting(securedSetting.getKey(), securedSetting.getValue());
         }
 
         if (password != null && !password.isEmpty()) {
-            delegate.withEnv("ELASTIC_PASSWORD", password);
+            container.withEnv("ELASTIC_PASSWORD", password);
         }
 
-        delegate.start();
+        return container;
+    }
+
+    private String sharedKey() {
+        return String.join("|", baseUrl, version, String.valueOf(pluginDir), String.valueOf(plugins),
+                String.valueOf(new TreeMap<>(securedSettings)), String.valueOf(password));
     }
 
     @Override
     protected void after() {
+        closeClientFactory();
+        if (!started) {
+            // Lazy start and nobody needed the node
+            return;
+        }
+        started = false;
+        if (cassetteServer != null) {
+            try {
+                cassetteServer.close();
+            } catch (IOException e) {
+                logger.warn("Can not write cassette [{}]", cassette, e);
+            }
+            cassetteServer = null;
+        }
+        if (replaying) {
+            return;
+        }
+        if (lease != null) {
+            try {
+                lease.close();
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not give the elasticsearch node back", e);
+            } finally {
+                lease = null;
+            }
+            return;
+        }
+        if (starting != null) {
+            try {
+                delegate = starting.join();
+            } catch (CompletionException e) {
+                // The container did not start so there is nothing to stop
+                return;
+            } finally {
+                starting = null;
+            }
+        }
         Preconditions.check("delegate must have been created by before()", delegate != null);
-        delegate.stop();
+        if (shared) {
+            SharedContainers.release(sharedKey());
+        } else {
+            delegate.stop();
+        }
+    }
+
+    private synchronized void closeClientFactory() {
+        if (clientFactory == null) {
+            return;
+        }
+        RequestMetrics metrics = clientFactory.getMetrics();
+        if (!metrics.getEndpoints().isEmpty()) {
+            logger.info("Requests sent to elasticsearch:\n{}", metrics.summary());
+        }
+        try {
+            clientFactory.close();
+        } catch (IOException e) {
+            logger.warn("Error while closing the rest client", e);
+        }
+        clientFactory = null;
+        refreshController = null;
     }
 
     /**
@@ -177,16 +480,112 @@ public class ElasticsearchResource extends ExternalResource {
      * @return an HttpHost
      */
     public HttpHost getHost() {
-        Preconditions.check("delegate must have been created by before()", delegate != null);
-        return delegate.getHost();
+        ensureStarted();
+        if (cassetteServer != null) {
+            return cassetteServer.getHost();
+        }
+        if (lease != null) {
+            return lease.getHost();
+        }
+        return startedContainer().getHost();
     }
 
     @Nullable
     public ElasticsearchContainer getContainer() {
+        ensureStarted();
+        if (starting != null) {
+            return startedContainer();
+        }
         return delegate;
     }
 
     public String getPassword() {
         return password;
     }
+
+    /**
+     * Remove all the indices (and their aliases), index templates and ingest pipelines from the node.
+     * This is much faster than restarting a new container between tests.
+     * @throws IOException if something goes wrong
+     */
+    public void reset() throws IOException {
+        reset(null);
+    }
+
+    /**
+     * Remove the indices (and their aliases), index templates and ingest pipelines which belong to a namespace.
+     * @param namespace The namespace to clean. If null, everything is removed.
+     * @throws IOException if something goes wrong
+     */
+    public void reset(IndexNamespace namespace) throws IOException {
+        ensureStarted();
+        if (replaying) {
+            // Recorded responses do not depend on the state of a node
+            return;
+        }
+        if (lease != null) {
+            lease.reset(namespace);
+            return;
+        }
+        ElasticsearchContainer container = startedContainer();
+        ClusterReset.reset(container.getRestClient(), namespace);
+        if (namespace == null) {
+            container.installIndexDefaults();
+        }
+    }
+
+    /**
+     * Get the factory of the Rest client connected to the node. The client is created once, records the latency,
+     * size and status of every request and is closed by {@link #after()}, which also logs a summary of the metrics.
+     * @return the client factory
+     */
+    public synchronized RestClientFactory clientFactory() {
+        if (clientFactory == null) {
+            clientFactory = new RestClientFactory(getHost(), lease != null ? lease.getPassword() : password);
+        }
+        return clientFactory;
+    }
+
+    /**
+     * Get the refresh controller of the node. Writes sent with the client of {@link #clientFactory()} are
+     * tracked so {@link RefreshController#refresh()} only refreshes the indices which need it.
+     * @return the refresh controller
+     */
+    public synchronized RefreshController refreshController() {
+        if (refreshController == null) {
+            RestClientFactory factory = clientFactory();
+            ElasticsearchContainer container = getContainer();
+            boolean indexDefaults = lease != null ? lease.hasIndexDefaults() : container != null && container.hasIndexDefaults();
+            refreshController = new RefreshController(factory.getClient(), ElasticsearchContainer.majorVersion(version),
+                    indexDefaults ? ElasticsearchContainer.INDEX_DEFAULTS_REFRESH_INTERVAL : RefreshController.DEFAULT_REFRESH_INTERVAL);
+            factory.addRequestListener(refreshController::sent);
+        }
+        return refreshController;
+    }
+
+    /**
+     * Get a loader which can stream NDJSON documents into the node with the bulk API
+     * @return a fixture loader
+     */
+    public BulkFixtureLoader fixtureLoader() {
+        return new BulkFixtureLoader(clientFactory().getClient());
+    }
+
+    /**
+     * Get a load generator which sends its requests with the client of {@link #clientFactory()}.
+     * Size the client connection pool for the load with {@code clientFactory().withMaxConnections()}.
+     * @return a load generator
+     */
+    public LoadGenerator loadGenerator() {
+        return new LoadGenerator(clientFactory().getClient());
+    }
+
+    /**
+     * Create a new namespace with a unique prefix. Use it to name the indices, templates and pipelines
+     * of a test so tests running in parallel on the same node never collide.
+     * @return a new namespace
+     */
+    public IndexNamespace newIndexNamespace() {
+        return new IndexNamespace();
+    }
 }
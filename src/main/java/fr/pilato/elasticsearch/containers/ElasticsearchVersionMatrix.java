@@ -0,0 +1,406 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.HdrHistogram.Histogram;
+import org.rnorth.ducttape.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_BASE_URL;
+import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_VERSION;
+
+/**
+ * Runs the same workload against several elasticsearch versions and image flavours and compares them side by side.
+ * <p>
+ * For each version and flavour, a fresh container is started, the {@link LoadGenerator} workload is sent to it
+ * and the container is stopped. The report gives the startup time, the indexing throughput and the latencies
+ * of each run. A run which fails (an image which does not exist, a node which does not start...) is reported
+ * as failed and does not stop the other runs.
+ * <pre>
+ * ElasticsearchVersionMatrix.Report report = new ElasticsearchVersionMatrix()
+ *         .withVersions("5.6.10", "6.3.0")
+ *         .withFlavours(ElasticsearchVersionMatrix.DEFAULT_FLAVOUR, ElasticsearchVersionMatrix.OSS_FLAVOUR)
+ *         .withNodeCustomizer(node -&gt; node.withHeapSize("512m").withEnv("ELASTIC_PASSWORD", "changeme"))
+ *         .withWorkload(load -&gt; load.withRate(200).withDuration(Duration.ofSeconds(30)))
+ *         .run();
+ * System.out.println(report);
+ * </pre>
+ * Runs happen in parallel, up to {@link #withParallelism(int)} containers at the same time. Parallel runs share
+ * the same cpus, so use a parallelism of 1 when latencies matter more than the total time.
+ * @author dadoonet
+ */
+public class ElasticsearchVersionMatrix {
+
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchVersionMatrix.class);
+
+    /**
+     * Image flavour with x-pack, like docker.elastic.co/elasticsearch/elasticsearch
+     */
+    public static final String DEFAULT_FLAVOUR = "";
+    /**
+     * Image flavour without x-pack, like docker.elastic.co/elasticsearch/elasticsearch-oss
+     */
+    public static final String OSS_FLAVOUR = "-oss";
+
+    static final String DEFAULT_INDEX = "version-matrix";
+
+    private final List<String> versions = new ArrayList<>();
+    private final List<String> flavours = new ArrayList<>(Collections.singletonList(DEFAULT_FLAVOUR));
+    private final List<Consumer<ElasticsearchContainer>> customizers = new ArrayList<>();
+    private final List<Consumer<LoadGenerator>> workload = new ArrayList<>();
+    private String baseUrl = ELASTICSEARCH_DEFAULT_BASE_URL;
+    private String index = DEFAULT_INDEX;
+    private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+    /**
+     * Define the elasticsearch versions to compare
+     * @param versions  Elasticsearch versions like 5.6.10 or 6.3.0. Defaults to the version of the module.
+     * @return this
+     */
+    public ElasticsearchVersionMatrix withVersions(String... versions) {
+        this.versions.clear();
+        this.versions.addAll(Arrays.asList(versions));
+        return this;
+    }
+
+    /**
+     * Define the image flavours to compare. A flavour is appended to the base url.
+     * @param flavours  {@link #DEFAULT_FLAVOUR} and/or {@link #OSS_FLAVOUR}. Defaults to {@link #DEFAULT_FLAVOUR}.
+     * @return this
+     */
+    public ElasticsearchVersionMatrix withFlavours(String... flavours) {
+        Preconditions.check("at least one flavour is needed", flavours.length > 0);
+        this.flavours.clear();
+        this.flavours.addAll(Arrays.asList(flavours));
+        return this;
+    }
+
+    /**
+     * Define the elasticsearch docker registry base url
+     * @param baseUrl  defaults to docker.elastic.co/elasticsearch/elasticsearch
+     * @return this
+     */
+    public ElasticsearchVersionMatrix withBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+        return this;
+    }
+
+    /**
+     * Customize every container before it starts (plugins, heap size, password...)
+     * @param customizer    Called for each container
+     * @return this
+     */
+    public ElasticsearchVersionMatrix withNodeCustomizer(Consumer<ElasticsearchContainer> customizer) {
+        customizers.add(customizer);
+        return this;
+    }
+
+    /**
+     * Configure the workload sent to every container (rate, duration, documents...)
+     * @param workload  Called with the load generator of each run
+     * @return this
+     */
+    public ElasticsearchVersionMatrix withWorkload(Consumer<LoadGenerator> workload) {
+        this.workload.add(workload);
+        return this;
+    }
+
+    /**
+     * Define the index the workload is sent to
+     * @param index defaults to version-matrix
+     * @return this
+     */
+    public ElasticsearchVersionMatrix withIndex(String index) {
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * Define how many containers can run at the same time
+     * @param parallelism   defaults to a quarter of the available processors, at least 1
+     * @return this
+     */
+    public ElasticsearchVersionMatrix withParallelism(int parallelism) {
+        Preconditions.check("parallelism must be at least 1", parallelism > 0);
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Run the workload against every version and flavour
+     * @return the report, with one row per version and flavour in the order they were defined
+     * @throws InterruptedException if interrupted while waiting for the runs
+     */
+    public Report run() throws InterruptedException {
+        List<String> matrixVersions = versions.isEmpty() ? Collections.singletonList(ELASTICSEARCH_DEFAULT_VERSION) : versions;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "elasticsearch-version-matrix");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Row>> futures = new ArrayList<>();
+            for (String version : matrixVersions) {
+                for (String flavour : flavours) {
+                    futures.add(executor.submit(() -> runOne(version, flavour)));
+                }
+            }
+            List<Row> rows = new ArrayList<>();
+            for (Future<Row> future : futures) {
+                try {
+                    rows.add(future.get());
+                } catch (ExecutionException e) {
+                    // runOne catches everything, so this should not happen
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return new Report(rows);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Row runOne(String version, String flavour) {
+        ElasticsearchContainer<?> container = new ElasticsearchContainer<>();
+        container.withBaseUrl(baseUrl + flavour).withVersion(version);
+        for (Consumer<ElasticsearchContainer> customizer : customizers) {
+            customizer.accept(container);
+        }
+
+        Duration startup = null;
+        try {
+            logger.info("Starting elasticsearch [{}] from [{}]", version, baseUrl + flavour);
+            container.start();
+            Map<StartupPhase, Duration> timings = container.getStartupTimings();
+            startup = timings.values().stream().reduce(Duration.ZERO, Duration::plus);
+
+            LoadGenerator load = new LoadGenerator(container.getRestClient());
+            for (Consumer<LoadGenerator> configuration : workload) {
+                configuration.accept(load);
+            }
+            LoadGenerator.Result result = load.run(index);
+            logger.info("Elasticsearch [{}{}]: {}", version, flavour, result);
+            return new Row(version, flavour, startup, result, null);
+        } catch (Exception e) {
+            logger.warn("Run against elasticsearch [{}{}] failed: {}", version, flavour, e.getMessage());
+            return new Row(version, flavour, startup, null, e);
+        } finally {
+            container.stop();
+        }
+    }
+
+    /**
+     * Measures of one version and flavour
+     */
+    public static class Row {
+        private final String version;
+        private final String flavour;
+        private final Duration startup;
+        private final LoadGenerator.Result result;
+        private final Exception failure;
+
+        Row(String version, String flavour, Duration startup, LoadGenerator.Result result, Exception failure) {
+            this.version = version;
+            this.flavour = flavour;
+            this.startup = startup;
+            this.result = result;
+            this.failure = failure;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getFlavour() {
+            return flavour;
+        }
+
+        /**
+         * @return how long the container took to start, or null if it did not start
+         */
+        public Duration getStartup() {
+            return startup;
+        }
+
+        /**
+         * @return the workload measures, or null if the run failed
+         */
+        public LoadGenerator.Result getResult() {
+            return result;
+        }
+
+        /**
+         * @return why the run failed, or null if it succeeded
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return the version followed by the flavour, like 6.3.0-oss
+         */
+        public String getName() {
+            return version + flavour;
+        }
+    }
+
+    /**
+     * Side by side measures of all the versions and flavours
+     */
+    public static class Report {
+        private static final String[] COLUMNS = {"version", "startup(ms)", "ops/s", "docs/s",
+                "index p50(ms)", "index p99(ms)", "index errors", "search p50(ms)", "search p99(ms)", "search errors"};
+
+        private final List<Row> rows;
+
+        Report(List<Row> rows) {
+            this.rows = Collections.unmodifiableList(new ArrayList<>(rows));
+        }
+
+        /**
+         * @return one row per version and flavour
+         */
+        public List<Row> getRows() {
+            return rows;
+        }
+
+        /**
+         * Find the row of a version and flavour
+         * @param version   Elasticsearch version
+         * @param flavour   Image flavour
+         * @return the row or null if this version and flavour were not part of the matrix
+         */
+        public Row getRow(String version, String flavour) {
+            for (Row row : rows) {
+                if (row.getVersion().equals(version) && row.getFlavour().equals(flavour)) {
+                    return row;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the values of each row, in the {@link #COLUMNS} order. Failed runs only have a name and a startup time.
+         */
+        private List<String[]> cells() {
+            List<String[]> cells = new ArrayList<>();
+            for (Row row : rows) {
+                String[] values = new String[COLUMNS.length];
+                Arrays.fill(values, "");
+                values[0] = row.getName();
+                if (row.getStartup() != null) {
+                    values[1] = String.valueOf(row.getStartup().toMillis());
+                }
+                LoadGenerator.Result result = row.getResult();
+                if (result != null) {
+                    values[2] = String.format(Locale.ROOT, "%.1f", result.getThroughput());
+                    values[3] = String.valueOf((long) result.getIndexedDocsPerSecond());
+                    Histogram index = result.getIndexLatencies();
+                    values[4] = millis(index, 50);
+                    values[5] = millis(index, 99);
+                    values[6] = String.valueOf(result.getIndexErrors());
+                    Histogram search = result.getSearchLatencies();
+                    values[7] = millis(search, 50);
+                    values[8] = millis(search, 99);
+                    values[9] = String.valueOf(result.getSearchErrors());
+                }
+                cells.add(values);
+            }
+            return cells;
+        }
+
+        private static String millis(Histogram latencies, double percentile) {
+            if (latencies.getTotalCount() == 0) {
+                return "";
+            }
+            return String.format(Locale.ROOT, "%.3f", latencies.getValueAtPercentile(percentile) / 1000.0);
+        }
+
+        /**
+         * Write the report as CSV, one line per version and flavour
+         * @param report    Target file
+         * @throws IOException if the file can not be written
+         */
+        public void writeReport(Path report) throws IOException {
+            Path parent = report.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+                writer.write(String.join(",", COLUMNS));
+                writer.write(",failure");
+                writer.newLine();
+                List<String[]> cells = cells();
+                for (int i = 0; i < rows.size(); i++) {
+                    writer.write(String.join(",", cells.get(i)));
+                    writer.write(',');
+                    Exception failure = rows.get(i).getFailure();
+                    if (failure != null) {
+                        writer.write('"' + String.valueOf(failure.getMessage()).replace("\"", "\"\"") + '"');
+                    }
+                    writer.newLine();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            String header = "%-24s" + repeat(" %14s", COLUMNS.length - 1) + "%n";
+            StringBuilder summary = new StringBuilder(String.format(header, (Object[]) COLUMNS));
+            List<String[]> cells = cells();
+            for (int i = 0; i < rows.size(); i++) {
+                Exception failure = rows.get(i).getFailure();
+                if (failure != null) {
+                    summary.append(String.format("%-24s %14s failed: %s%n", cells.get(i)[0], cells.get(i)[1], failure.getMessage()));
+                } else {
+                    summary.append(String.format(header, (Object[]) cells.get(i)));
+                }
+            }
+            return summary.toString();
+        }
+
+        private static String repeat(String format, int times) {
+            StringBuilder repeated = new StringBuilder();
+            for (int i = 0; i < times; i++) {
+                repeated.append(format);
+            }
+            return repeated.toString();
+        }
+    }
+}
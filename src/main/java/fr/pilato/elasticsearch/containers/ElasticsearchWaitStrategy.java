@@ -0,0 +1,219 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.ContainerLaunchException;
+import org.testcontainers.containers.output.FrameConsumerResultCallback;
+import org.testcontainers.containers.output.OutputFrame;
+import org.testcontainers.containers.wait.strategy.AbstractWaitStrategy;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Waits until the elasticsearch cluster health reaches a given status (yellow by default).
+ * <p>
+ * The cluster health API is polled with an increasing delay between two calls. As soon as the
+ * node writes the "started" line in its logs, we poll it again immediately so we don't wait
+ * for nothing once the node is able to serve requests.
+ * <p>
+ * When it is used by an {@link ElasticsearchContainer}, it also reports the {@link StartupPhase#START},
+ * {@link StartupPhase#PORT_OPEN} and {@link StartupPhase#CLUSTER_READY} phases.
+ * @author dadoonet
+ */
+public class ElasticsearchWaitStrategy extends AbstractWaitStrategy {
+
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchWaitStrategy.class);
+
+    private static final long MIN_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private int port = 9200;
+    private String status = "yellow";
+    private String username;
+    private String password;
+    private StartupTimer timer;
+    private boolean unauthorizedLogged = false;
+
+    /**
+     * Define the cluster status we want to wait for
+     * @param status  green, yellow or red. Defaults to yellow.
+     * @return this
+     */
+    public ElasticsearchWaitStrategy forStatus(String status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * Define the container http port to check
+     * @param port  defaults to 9200
+     * @return this
+     */
+    public ElasticsearchWaitStrategy forPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Credentials to use when X-Pack security is enabled
+     * @param username  Username (elastic)
+     * @param password  Password
+     * @return this
+     */
+    public ElasticsearchWaitStrategy withBasicCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Timer to report the startup phases to
+     * @param timer The container startup timer
+     * @return this
+     */
+    ElasticsearchWaitStrategy withStartupTimer(StartupTimer timer) {
+        this.timer = timer;
+        return this;
+    }
+
+    @Override
+    protected void waitUntilReady() {
+        CountDownLatch started = new CountDownLatch(1);
+        Consumer<OutputFrame> consumer = frame -> {
+            // The first line means that the JVM is running
+            mark(StartupPhase.START);
+            if (started.getCount() > 0 && isStartedLine(frame.getUtf8String())) {
+                started.countDown();
+            }
+        };
+        // We only need the logs until the node is ready, so we stop following them when we are done
+        FrameConsumerResultCallback callback = new FrameConsumerResultCallback();
+        callback.addConsumer(OutputFrame.OutputType.STDOUT, consumer);
+        callback.addConsumer(OutputFrame.OutputType.STDERR, consumer);
+        DockerClientFactory.instance().client().logContainerCmd(waitStrategyTarget.getContainerId())
+                .withFollowStream(true)
+                .withStdOut(true)
+                .withStdErr(true)
+                .exec(callback);
+        try {
+            waitUntilHealthy(started);
+        } finally {
+            try {
+                callback.close();
+            } catch (IOException e) {
+                logger.debug("Can not stop following the container logs: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void waitUntilHealthy(CountDownLatch started) {
+        String url = "http://" + waitStrategyTarget.getContainerIpAddress() + ":" + waitStrategyTarget.getMappedPort(port) +
+                "/_cluster/health?wait_for_status=" + status + "&timeout=1s";
+        logger.debug("Waiting for [{}] to be [{}]", url, status);
+
+        long deadline = System.nanoTime() + startupTimeout.toNanos();
+        long backoff = MIN_BACKOFF_MILLIS;
+        boolean nodeStarted = false;
+        try {
+            while (!isReady(url)) {
+                if (System.nanoTime() > deadline) {
+                    throw new ContainerLaunchException("Timed out waiting for elasticsearch cluster to be [" + status + "]");
+                }
+                if (!waitStrategyTarget.isRunning()) {
+                    throw new ContainerLaunchException("Container stopped while waiting for elasticsearch cluster to be [" + status + "]");
+                }
+                if (!nodeStarted && started.await(backoff, TimeUnit.MILLISECONDS)) {
+                    // The node just told us it started. Let's check it right now.
+                    nodeStarted = true;
+                    backoff = MIN_BACKOFF_MILLIS;
+                    continue;
+                }
+                if (nodeStarted) {
+                    Thread.sleep(backoff);
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ContainerLaunchException("Interrupted while waiting for elasticsearch cluster to be [" + status + "]");
+        }
+        mark(StartupPhase.CLUSTER_READY);
+        logger.debug("Elasticsearch cluster is [{}]", status);
+    }
+
+    private void mark(StartupPhase phase) {
+        if (timer != null) {
+            timer.mark(phase);
+        }
+    }
+
+    static boolean isStartedLine(String line) {
+        // Plain text logs (5.x, 6.x) and json logs (7.x)
+        return line != null && (line.contains("] started") || line.contains("\"message\": \"started\""));
+    }
+
+    boolean isReady(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            // The health API waits up to 1s on the server side
+            connection.setReadTimeout(CONNECT_TIMEOUT_MILLIS + 1000);
+            if (username != null) {
+                String credentials = username + ":" + (password == null ? "" : password);
+                connection.setRequestProperty("Authorization", "Basic " +
+                        Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+            }
+            int code = connection.getResponseCode();
+            // Whatever the status is, the node answers
+            mark(StartupPhase.PORT_OPEN);
+            logger.trace("Cluster health returned [{}]", code);
+            if (code == 401 && username == null) {
+                // X-Pack security is on but we have no credentials (like a 5.x image with the default
+                // elastic:changeme user). We can not read the cluster health but the node is up.
+                if (!unauthorizedLogged) {
+                    logger.warn("Elasticsearch requires authentication. Set ELASTIC_PASSWORD or call " +
+                            "withBasicCredentials() to wait for the cluster to be [{}].", status);
+                    unauthorizedLogged = true;
+                }
+                return true;
+            }
+            return code == 200;
+        } catch (IOException e) {
+            logger.trace("Elasticsearch is not available yet: {}", e.getMessage());
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.rnorth.ducttape.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TCP proxy running in the JVM which forwards connections to a node and injects faults:
+ * latency (with jitter), a bandwidth limit and connection resets. Faults can be changed at any time
+ * and apply to the data sent after the change.
+ * <p>
+ * Each direction of a connection is handled by a reader and a writer thread. The reader stamps each chunk of
+ * data with the time it must be delivered and the writer waits for this time (and for the bandwidth limit)
+ * before sending it, so latency does not reduce the throughput and the order of the data is kept.
+ * <pre>
+ * ElasticsearchContainer container = new ElasticsearchContainer().withFaultInjectionProxy();
+ * container.start();
+ * container.getFaultInjectionProxy()
+ *         .withLatency(Duration.ofMillis(50), Duration.ofMillis(10))
+ *         .withBandwidth(1024 * 1024);
+ * </pre>
+ */
+public class FaultInjectionProxy implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FaultInjectionProxy.class);
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PENDING_CHUNKS = 64;
+
+    private final String targetHost;
+    private final int targetPort;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong resetCount = new AtomicLong();
+    private final AtomicLong bytesForwarded = new AtomicLong();
+    private final Throttle upstreamThrottle = new Throttle();
+    private final Throttle downstreamThrottle = new Throttle();
+    private volatile long latencyNanos = 0;
+    private volatile long jitterNanos = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile double resetProbability = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Start a proxy listening on a random port of the loopback interface
+     * @param targetHost    Host to forward the connections to
+     * @param targetPort    Port to forward the connections to
+     * @throws IOException if the proxy can not listen
+     */
+    public FaultInjectionProxy(String targetHost, int targetPort) throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "elasticsearch-proxy-" + serverSocket.getLocalPort());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.submit(this::acceptConnections);
+        logger.debug("Proxy [{}] started in front of [{}:{}]", getPort(), targetHost, targetPort);
+    }
+
+    /**
+     * @return the address clients must connect to
+     */
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * @return the port clients must connect to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Delay the data in both directions, so a request/response round trip gets twice this latency
+     * @param latency   Delay added to each chunk of data
+     * @param jitter    Random variation of the delay, between -jitter and +jitter
+     * @return this
+     */
+    public FaultInjectionProxy withLatency(Duration latency, Duration jitter) {
+        Preconditions.check("jitter can not be greater than latency", jitter.compareTo(latency) <= 0);
+        this.latencyNanos = latency.toNanos();
+        this.jitterNanos = jitter.toNanos();
+        return this;
+    }
+
+    /**
+     * Limit the throughput of each direction of the proxy (all connections together)
+     * @param bytesPerSecond    Maximum number of bytes per second. 0 means no limit.
+     * @return this
+     */
+    public FaultInjectionProxy withBandwidth(long bytesPerSecond) {
+        Preconditions.check("bytesPerSecond can not be negative", bytesPerSecond >= 0);
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Reset (TCP RST) connections at random
+     * @param resetProbability  Probability to reset the connection each time a chunk of data is forwarded, between 0 and 1
+     * @return this
+     */
+    public FaultInjectionProxy withResetProbability(double resetProbability) {
+        Preconditions.check("resetProbability must be between 0 and 1", resetProbability >= 0 && resetProbability <= 1);
+        this.resetProbability = resetProbability;
+        return this;
+    }
+
+    /**
+     * Remove all the faults
+     * @return this
+     */
+    public FaultInjectionProxy withoutFaults() {
+        latencyNanos = 0;
+        jitterNanos = 0;
+        bytesPerSecond = 0;
+        resetProbability = 0;
+        return this;
+    }
+
+    /**
+     * Reset all the open connections now
+     */
+    public void resetConnections() {
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.reset();
+        }
+    }
+
+    /**
+     * @return the number of connections accepted so far
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the number of connections reset by the proxy so far
+     */
+    public long getResetCount() {
+        return resetCount.get();
+    }
+
+    /**
+     * @return the number of bytes forwarded so far, in both directions
+     */
+    public long getBytesForwarded() {
+        return bytesForwarded.get();
+    }
+
+    private void acceptConnections() {
+        while (!closed) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn("Proxy [{}] can not accept connections anymore", getPort(), e);
+                }
+                return;
+            }
+            connectionCount.incrementAndGet();
+            executor.submit(() -> connect(client));
+        }
+    }
+
+    private void connect(Socket client) {
+        Socket upstream = new Socket();
+        try {
+            client.setTcpNoDelay(true);
+            upstream.setTcpNoDelay(true);
+            upstream.connect(new InetSocketAddress(targetHost, targetPort));
+        } catch (IOException e) {
+            logger.debug("Proxy [{}] can not connect to [{}:{}]: {}", getPort(), targetHost, targetPort, e.getMessage());
+            closeQuietly(client);
+            closeQuietly(upstream);
+            return;
+        }
+        Connection connection = new Connection(client, upstream);
+        connections.add(connection);
+        if (closed) {
+            connection.close();
+            return;
+        }
+        connection.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.close();
+        }
+        executor.shutdownNow();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long wait = nanoTime - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Shares a bandwidth between connections: each chunk reserves the time it needs to be sent
+     */
+    private class Throttle {
+        private long nextFree = System.nanoTime();
+
+        /**
+         * @return the time when the chunk is sent
+         */
+        private synchronized long reserve(int bytes) {
+            long rate = bytesPerSecond;
+            long now = System.nanoTime();
+            if (rate <= 0) {
+                nextFree = now;
+                return now;
+            }
+            nextFree = Math.max(now, nextFree) + bytes * 1_000_000_000L / rate;
+            return nextFree;
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private final int length;
+        private final long due;
+
+        private Chunk(byte[] data, int length, long due) {
+            this.data = data;
+            this.length = length;
+            this.due = due;
+        }
+    }
+
+    private class Connection {
+        private final Socket client;
+        private final Socket upstream;
+        private final List<Future<?>> pumps = new ArrayList<>();
+        private final AtomicInteger ended = new AtomicInteger();
+
+        private Connection(Socket client, Socket upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+
+        private synchronized void start() {
+            forward(client, upstream, upstreamThrottle);
+            forward(upstream, client, downstreamThrottle);
+        }
+
+        private void forward(Socket from, Socket to, Throttle throttle) {
+            BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+            pumps.add(executor.submit(() -> read(from, chunks)));
+            pumps.add(executor.submit(() -> write(chunks, to, throttle)));
+        }
+
+        private void read(Socket from, BlockingQueue<Chunk> chunks) {
+            long lastDue = 0;
+            try {
+                // Closing the stream would close the socket while the other direction may still be in use
+                InputStream in = from.getInputStream();
+                while (true) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read = in.read(buffer);
+                    long now = System.nanoTime();
+                    if (read < 0) {
+                        chunks.put(new Chunk(null, -1, Math.max(lastDue, now)));
+                        return;
+                    }
+                    long delay = latencyNanos;
+                    long jitter = jitterNanos;
+                    if (jitter > 0) {
+                        delay += ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+                    }
+                    // Never deliver a chunk before the previous one
+                    lastDue = Math.max(lastDue, now + delay);
+                    chunks.put(new Chunk(buffer, read, lastDue));
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void write(BlockingQueue<Chunk> chunks, Socket to, Throttle throttle) {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = chunks.take();
+                    sleepUntil(chunk.due);
+                    if (chunk.length < 0) {
+                        to.shutdownOutput();
+                        if (ended.incrementAndGet() == 2) {
+                            // Both sides closed the connection
+                            close();
+                        }
+                        return;
+                    }
+                    double probability = resetProbability;
+                    if (probability > 0 && ThreadLocalRandom.current().nextDouble() < probability) {
+                        reset();
+                        return;
+                    }
+                    sleepUntil(throttle.reserve(chunk.length));
+                    out.write(chunk.data, 0, chunk.length);
+                    out.flush();
+                    bytesForwarded.addAndGet(chunk.length);
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Close both sockets with a TCP RST
+         */
+        private void reset() {
+            resetCount.incrementAndGet();
+            try {
+                client.setSoLinger(true, 0);
+                upstream.setSoLinger(true, 0);
+            } catch (SocketException e) {
+                logger.trace("Can not set SO_LINGER: {}", e.getMessage());
+            }
+            close();
+        }
+
+        private void close() {
+            if (!connections.remove(this)) {
+                return;
+            }
+            closeQuietly(client);
+            closeQuietly(upstream);
+            synchronized (this) {
+                for (Future<?> pump : pumps) {
+                    pump.cancel(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Garbage collector the elasticsearch JVM should use.
+ * The default jvm.options of elasticsearch 5.x and 6.x enable CMS, so we need to disable it
+ * before we can select another collector.
+ * @see ElasticsearchContainer#withGarbageCollector(GarbageCollector)
+ */
+public enum GarbageCollector {
+    CMS("-XX:+UseConcMarkSweepGC"),
+    G1("-XX:-UseConcMarkSweepGC", "-XX:-UseCMSInitiatingOccupancyOnly", "-XX:+UseG1GC"),
+    PARALLEL("-XX:-UseConcMarkSweepGC", "-XX:-UseCMSInitiatingOccupancyOnly", "-XX:+UseParallelGC"),
+    /**
+     * Usually the best choice for small test nodes with a few hundreds megabytes of heap
+     */
+    SERIAL("-XX:-UseConcMarkSweepGC", "-XX:-UseCMSInitiatingOccupancyOnly", "-XX:+UseSerialGC");
+
+    private final List<String> jvmOptions;
+
+    GarbageCollector(String... jvmOptions) {
+        this.jvmOptions = Arrays.asList(jvmOptions);
+    }
+
+    /**
+     * @return the JVM options to add to ES_JAVA_OPTS
+     */
+    public List<String> getJvmOptions() {
+        return jvmOptions;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import java.util.UUID;
+
+/**
+ * A unique prefix for the indices, templates and pipelines a test creates
+ * so tests running in parallel against the same node never collide.
+ * @see ElasticsearchResource#newIndexNamespace()
+ * @see ElasticsearchResource#reset(IndexNamespace)
+ */
+public class IndexNamespace {
+
+    private final String prefix;
+
+    IndexNamespace() {
+        this("ns-" + UUID.randomUUID().toString().replace("-", "").substring(0, 12) + "-");
+    }
+
+    IndexNamespace(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return the prefix used for all the names of this namespace
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Generate a name in this namespace
+     * @param name  Index, template or pipeline name
+     * @return the name prefixed with the namespace prefix
+     */
+    public String index(String name) {
+        return prefix + name;
+    }
+
+    @Override
+    public String toString() {
+        return prefix;
+    }
+}
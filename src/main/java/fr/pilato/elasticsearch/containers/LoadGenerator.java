@@ -0,0 +1,414 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.rnorth.ducttape.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a mixed index and search workload to a node at a target rate and measures the latency and the throughput.
+ * <p>
+ * Operations are scheduled at fixed intervals (open loop) whatever the node response time is, and the latency
+ * of an operation is measured from the time it should have been sent. So when the node slows down, the operations
+ * which wait for it are counted as slow too, instead of being silently sent later (coordinated omission).
+ * The number of requests in flight is bounded: when the bound is reached, the next operations wait and their
+ * waiting time is part of their latency.
+ * <pre>
+ * LoadGenerator.Result result = elasticsearch.loadGenerator()
+ *         .withRate(500)
+ *         .withSearchRatio(0.2)
+ *         .withWarmup(Duration.ofSeconds(5))
+ *         .withDuration(Duration.ofSeconds(30))
+ *         .run("load-test");
+ * long p99 = result.getIndexLatencies().getValueAtPercentile(99);
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+    private static final String[] WORDS = {"elasticsearch", "lucene", "search", "index", "shard", "replica", "node",
+            "cluster", "mapping", "query", "aggregation", "document", "segment", "merge", "refresh", "translog"};
+
+    /**
+     * Documents with a timestamp, a user, a few random words and a number
+     */
+    public static final JsonGenerator DEFAULT_DOCUMENTS = (sequence, random) -> "{\"sequence\":" + sequence +
+            ",\"user\":\"user-" + random.nextInt(1000) +
+            "\",\"message\":\"" + WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] +
+            " " + WORDS[random.nextInt(WORDS.length)] + "\",\"value\":" + random.nextInt(100_000) + "}";
+
+    /**
+     * A match query on one random word of the default documents
+     */
+    public static final JsonGenerator DEFAULT_QUERIES = (sequence, random) ->
+            "{\"query\":{\"match\":{\"message\":\"" + WORDS[random.nextInt(WORDS.length)] + "\"}}}";
+
+    private final RestClient client;
+    private double rate = 100;
+    private Duration duration = Duration.ofSeconds(10);
+    private Duration warmup = Duration.ZERO;
+    private double searchRatio = 0;
+    private int bulkSize = 1;
+    private int maxInFlight = 100;
+    private String type = "doc";
+    private long seed = 0;
+    private JsonGenerator documents = DEFAULT_DOCUMENTS;
+    private JsonGenerator queries = DEFAULT_QUERIES;
+
+    public LoadGenerator(RestClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Number of operations to start per second
+     * @param rate  defaults to 100
+     * @return this
+     */
+    public LoadGenerator withRate(double rate) {
+        Preconditions.check("rate must be positive", rate > 0);
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * How long the measured part of the run lasts
+     * @param duration  defaults to 10 seconds
+     * @return this
+     */
+    public LoadGenerator withDuration(Duration duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * How long to run before measuring, so the JVM of the node is warm
+     * @param warmup    defaults to no warmup
+     * @return this
+     */
+    public LoadGenerator withWarmup(Duration warmup) {
+        this.warmup = warmup;
+        return this;
+    }
+
+    /**
+     * Share of the operations which are searches. The other ones index documents.
+     * @param searchRatio   between 0 and 1. Defaults to 0 (only indexing).
+     * @return this
+     */
+    public LoadGenerator withSearchRatio(double searchRatio) {
+        Preconditions.check("searchRatio must be between 0 and 1", searchRatio >= 0 && searchRatio <= 1);
+        this.searchRatio = searchRatio;
+        return this;
+    }
+
+    /**
+     * Number of documents indexed by one index operation. With more than one document, the bulk API is used.
+     * @param bulkSize  defaults to 1
+     * @return this
+     */
+    public LoadGenerator withBulkSize(int bulkSize) {
+        Preconditions.check("bulkSize must be positive", bulkSize > 0);
+        this.bulkSize = bulkSize;
+        return this;
+    }
+
+    /**
+     * Maximum number of requests running at the same time
+     * @param maxInFlight   defaults to 100. It should not be more than the connection pool of the client.
+     * @return this
+     */
+    public LoadGenerator withMaxInFlight(int maxInFlight) {
+        Preconditions.check("maxInFlight must be positive", maxInFlight > 0);
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Document type to use
+     * @param type  defaults to doc
+     * @return this
+     */
+    public LoadGenerator withType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Seed of the random generator, so two runs send the same operations
+     * @param seed  defaults to 0
+     * @return this
+     */
+    public LoadGenerator withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Generator of the indexed documents
+     * @param documents defaults to {@link #DEFAULT_DOCUMENTS}
+     * @return this
+     */
+    public LoadGenerator withDocuments(JsonGenerator documents) {
+        this.documents = documents;
+        return this;
+    }
+
+    /**
+     * Generator of the search requests
+     * @param queries   defaults to {@link #DEFAULT_QUERIES}
+     * @return this
+     */
+    public LoadGenerator withQueries(JsonGenerator queries) {
+        this.queries = queries;
+        return this;
+    }
+
+    /**
+     * Run the workload against an index, which is created if it does not exist yet
+     * @param index Index name
+     * @return the measures
+     * @throws IOException if the index can not be created or if the requests do not complete in time
+     */
+    public Result run(String index) throws IOException {
+        if (client.performRequest("HEAD", "/" + index).getStatusLine().getStatusCode() == 404) {
+            client.performRequest("PUT", "/" + index);
+        }
+
+        Run run = new Run(index);
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long end = measureFrom + duration.toNanos();
+        logger.info("Sending {} operations per second to [{}] for {} ms (with {} ms of warmup)", rate, index,
+                duration.toMillis(), warmup.toMillis());
+        try {
+            for (long sequence = 0; ; sequence++) {
+                long intended = start + (long) (sequence * 1_000_000_000.0 / rate);
+                if (intended >= end) {
+                    break;
+                }
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                run.inFlight.acquire();
+                run.send(sequence, intended, intended >= measureFrom);
+            }
+            if (!run.inFlight.tryAcquire(maxInFlight, DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("Requests still running " + DRAIN_TIMEOUT_SECONDS + "s after the end of the run");
+            }
+            run.inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending load to [" + index + "]", e);
+        }
+
+        Result result = new Result(rate, Duration.ofNanos(run.lastCompletion.get() > end ? run.lastCompletion.get() - measureFrom : end - measureFrom),
+                run.indexLatencies, run.searchLatencies, run.indexErrors.get(), run.searchErrors.get(), bulkSize);
+        logger.info("Load on [{}]: {}", index, result);
+        return result;
+    }
+
+    /**
+     * State of one run
+     */
+    private class Run {
+        private final String index;
+        private final Random random = new Random(seed);
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+        private final Histogram indexLatencies = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+        private final Histogram searchLatencies = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+        private final AtomicLong indexErrors = new AtomicLong();
+        private final AtomicLong searchErrors = new AtomicLong();
+        private final AtomicLong lastCompletion = new AtomicLong();
+
+        private Run(String index) {
+            this.index = index;
+        }
+
+        private void send(long sequence, long intended, boolean measured) {
+            boolean search = searchRatio > 0 && random.nextDouble() < searchRatio;
+            String endpoint;
+            String body;
+            ContentType contentType = ContentType.APPLICATION_JSON;
+            if (search) {
+                endpoint = "/" + index + "/_search";
+                body = queries.generate(sequence, random);
+            } else if (bulkSize == 1) {
+                endpoint = "/" + index + "/" + type;
+                body = documents.generate(sequence, random);
+            } else {
+                endpoint = "/" + index + "/" + type + "/_bulk";
+                StringBuilder bulk = new StringBuilder();
+                for (int i = 0; i < bulkSize; i++) {
+                    bulk.append("{\"index\":{}}\n").append(documents.generate(sequence * bulkSize + i, random)).append('\n');
+                }
+                body = bulk.toString();
+                contentType = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+            }
+
+            client.performRequestAsync("POST", endpoint, Collections.emptyMap(), new NStringEntity(body, contentType),
+                    new ResponseListener() {
+                        @Override
+                        public void onSuccess(Response response) {
+                            done(true);
+                        }
+
+                        @Override
+                        public void onFailure(Exception exception) {
+                            if (!(exception instanceof ResponseException)) {
+                                logger.debug("Operation failed: {}", exception.getMessage());
+                            }
+                            done(false);
+                        }
+
+                        private void done(boolean success) {
+                            long now = System.nanoTime();
+                            lastCompletion.accumulateAndGet(now, Math::max);
+                            if (measured) {
+                                (search ? searchLatencies : indexLatencies).recordValue(TimeUnit.NANOSECONDS.toMicros(now - intended));
+                                if (!success) {
+                                    (search ? searchErrors : indexErrors).incrementAndGet();
+                                }
+                            }
+                            inFlight.release();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Measures of a run. Latencies are in microseconds and measured from the time the operation was scheduled.
+     */
+    public static class Result {
+        private final double targetRate;
+        private final Duration took;
+        private final Histogram indexLatencies;
+        private final Histogram searchLatencies;
+        private final long indexErrors;
+        private final long searchErrors;
+        private final int bulkSize;
+
+        Result(double targetRate, Duration took, Histogram indexLatencies, Histogram searchLatencies,
+               long indexErrors, long searchErrors, int bulkSize) {
+            this.targetRate = targetRate;
+            this.took = took;
+            this.indexLatencies = indexLatencies.copy();
+            this.searchLatencies = searchLatencies.copy();
+            this.indexErrors = indexErrors;
+            this.searchErrors = searchErrors;
+            this.bulkSize = bulkSize;
+        }
+
+        /**
+         * @return the number of operations per second we tried to send
+         */
+        public double getTargetRate() {
+            return targetRate;
+        }
+
+        /**
+         * @return how long it took to complete the measured operations
+         */
+        public Duration getTook() {
+            return took;
+        }
+
+        /**
+         * @return the latencies of the index operations, in microseconds
+         */
+        public Histogram getIndexLatencies() {
+            return indexLatencies.copy();
+        }
+
+        /**
+         * @return the latencies of the search operations, in microseconds
+         */
+        public Histogram getSearchLatencies() {
+            return searchLatencies.copy();
+        }
+
+        /**
+         * @return the number of index operations which failed. A bulk request only fails when the whole request fails.
+         */
+        public long getIndexErrors() {
+            return indexErrors;
+        }
+
+        /**
+         * @return the number of search operations which failed
+         */
+        public long getSearchErrors() {
+            return searchErrors;
+        }
+
+        /**
+         * @return the number of measured operations completed per second, successful or not
+         */
+        public double getThroughput() {
+            long nanos = took.toNanos();
+            return nanos == 0 ? 0 : (indexLatencies.getTotalCount() + searchLatencies.getTotalCount()) * 1_000_000_000.0 / nanos;
+        }
+
+        /**
+         * @return the number of documents indexed per second
+         */
+        public double getIndexedDocsPerSecond() {
+            long nanos = took.toNanos();
+            return nanos == 0 ? 0 : (indexLatencies.getTotalCount() - indexErrors) * bulkSize * 1_000_000_000.0 / nanos;
+        }
+
+        private static String percentiles(Histogram latencies) {
+            if (latencies.getTotalCount() == 0) {
+                return "none";
+            }
+            return String.format("count=%d, p50=%.3fms, p90=%.3fms, p99=%.3fms, p99.9=%.3fms, max=%.3fms",
+                    latencies.getTotalCount(), latencies.getValueAtPercentile(50) / 1000.0,
+                    latencies.getValueAtPercentile(90) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+                    latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMaxValue() / 1000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("target=%.1f ops/s, achieved=%.1f ops/s, docs/s=%d, index=[%s, errors=%d], search=[%s, errors=%d]",
+                    targetRate, getThroughput(), (long) getIndexedDocsPerSecond(), percentiles(indexLatencies), indexErrors,
+                    percentiles(searchLatencies), searchErrors);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Metrics of a node at a given time, as collected by {@link ElasticsearchContainer#withStatsSampling(java.time.Duration, java.nio.file.Path)}.
+ * Metrics are named after the node stats they come from, like {@code jvm.heap_used_percent},
+ * {@code thread_pool.write.rejected} or {@code indices.merges.current}, and {@code container.cpu_percent}
+ * or {@code container.memory_bytes} for the docker container stats. Metrics which could not be read are missing.
+ */
+public class NodeStatsSample {
+
+    private final Instant timestamp;
+    private final Map<String, Number> metrics;
+
+    NodeStatsSample(Instant timestamp, Map<String, Number> metrics) {
+        this.timestamp = timestamp;
+        this.metrics = Collections.unmodifiableMap(metrics);
+    }
+
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the metrics, in a stable order
+     */
+    public Map<String, Number> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param name  Metric name like jvm.heap_used_percent
+     * @return the value or null if the metric is missing
+     */
+    public Number get(String name) {
+        return metrics.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return timestamp + " " + metrics;
+    }
+}
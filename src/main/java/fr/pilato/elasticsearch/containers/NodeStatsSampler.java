@@ -0,0 +1,284 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.github.dockerjava.api.model.CpuStatsConfig;
+import com.github.dockerjava.api.model.Statistics;
+import com.github.dockerjava.core.async.ResultCallbackTemplate;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.JsonNode;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.node.ArrayNode;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the node stats and the docker container stats of a running container in the background.
+ * <p>
+ * Only the fields we need are fetched from the {@code _nodes/_local/stats} API (with {@code filter_path}) and
+ * the docker stats are read from a stream docker updates every second, so sampling costs one small request per
+ * interval. The last samples are kept in a bounded ring buffer: when it is full, the oldest sample is dropped.
+ */
+final class NodeStatsSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeStatsSampler.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static final int DEFAULT_CAPACITY = 3600;
+
+    private static final String STATS_ENDPOINT = "/_nodes/_local/stats/jvm,thread_pool,indices";
+    private static final String FILTER_PATH = String.join(",",
+            "nodes.*.jvm.mem.heap_used_in_bytes",
+            "nodes.*.jvm.mem.heap_used_percent",
+            "nodes.*.jvm.gc.collectors",
+            "nodes.*.thread_pool.write",
+            "nodes.*.thread_pool.bulk",
+            "nodes.*.thread_pool.search",
+            "nodes.*.indices.indexing.index_total",
+            "nodes.*.indices.search.query_total",
+            "nodes.*.indices.merges",
+            "nodes.*.indices.segments.count");
+
+    private final RestClient client;
+    private final String containerId;
+    private final Duration interval;
+    private final int capacity;
+    private final Deque<NodeStatsSample> samples = new ArrayDeque<>();
+    private ScheduledExecutorService scheduler;
+    private DockerStatsCallback dockerStats;
+
+    NodeStatsSampler(RestClient client, String containerId, Duration interval, int capacity) {
+        this.client = client;
+        this.containerId = containerId;
+        this.interval = interval;
+        this.capacity = capacity;
+    }
+
+    void start() {
+        dockerStats = DockerClientFactory.instance().client().statsCmd(containerId).exec(new DockerStatsCallback());
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "elasticsearch-stats-" + containerId.substring(0, Math.min(12, containerId.length())));
+            thread.setDaemon(true);
+            return thread;
+        });
+        // With a fixed delay, a slow node does not get more requests than it can answer
+        scheduler.scheduleWithFixedDelay(this::sample, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+        if (dockerStats != null) {
+            try {
+                dockerStats.close();
+            } catch (IOException e) {
+                logger.debug("Error while closing the docker stats stream: {}", e.getMessage());
+            }
+            dockerStats = null;
+        }
+    }
+
+    void sample() {
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        try {
+            Response response = client.performRequest("GET", STATS_ENDPOINT, Collections.singletonMap("filter_path", FILTER_PATH));
+            try (InputStream is = response.getEntity().getContent()) {
+                Iterator<JsonNode> nodes = MAPPER.readTree(is).path("nodes").elements();
+                if (nodes.hasNext()) {
+                    readNodeStats(nodes.next(), metrics);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Can not read the node stats: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            // Throwing would cancel all the next samples
+            logger.warn("Can not read the node stats", e);
+        }
+        if (dockerStats != null) {
+            readDockerStats(dockerStats.latest, metrics);
+        }
+        if (!metrics.isEmpty()) {
+            add(new NodeStatsSample(Instant.now(), metrics));
+        }
+    }
+
+    static void readNodeStats(JsonNode node, Map<String, Number> metrics) {
+        JsonNode jvm = node.path("jvm");
+        put(metrics, "jvm.heap_used_bytes", jvm.path("mem").path("heap_used_in_bytes"));
+        put(metrics, "jvm.heap_used_percent", jvm.path("mem").path("heap_used_percent"));
+        for (String collector : new String[]{"young", "old"}) {
+            JsonNode gc = jvm.path("gc").path("collectors").path(collector);
+            put(metrics, "jvm.gc." + collector + ".count", gc.path("collection_count"));
+            put(metrics, "jvm.gc." + collector + ".millis", gc.path("collection_time_in_millis"));
+        }
+
+        JsonNode threadPools = node.path("thread_pool");
+        // The bulk thread pool has been renamed to write in 6.3
+        JsonNode write = threadPools.has("write") ? threadPools.path("write") : threadPools.path("bulk");
+        readThreadPool("write", write, metrics);
+        readThreadPool("search", threadPools.path("search"), metrics);
+
+        JsonNode indices = node.path("indices");
+        put(metrics, "indices.indexing.total", indices.path("indexing").path("index_total"));
+        put(metrics, "indices.search.query_total", indices.path("search").path("query_total"));
+        put(metrics, "indices.merges.current", indices.path("merges").path("current"));
+        put(metrics, "indices.merges.total", indices.path("merges").path("total"));
+        put(metrics, "indices.merges.total_millis", indices.path("merges").path("total_time_in_millis"));
+        put(metrics, "indices.segments.count", indices.path("segments").path("count"));
+    }
+
+    private static void readThreadPool(String name, JsonNode pool, Map<String, Number> metrics) {
+        put(metrics, "thread_pool." + name + ".active", pool.path("active"));
+        put(metrics, "thread_pool." + name + ".queue", pool.path("queue"));
+        put(metrics, "thread_pool." + name + ".rejected", pool.path("rejected"));
+    }
+
+    private static void put(Map<String, Number> metrics, String name, JsonNode value) {
+        if (value.isNumber()) {
+            metrics.put(name, value.numberValue());
+        }
+    }
+
+    static void readDockerStats(Statistics statistics, Map<String, Number> metrics) {
+        if (statistics == null) {
+            return;
+        }
+        CpuStatsConfig cpu = statistics.getCpuStats();
+        CpuStatsConfig preCpu = statistics.getPreCpuStats();
+        if (cpu != null && preCpu != null && cpu.getCpuUsage() != null && preCpu.getCpuUsage() != null &&
+                cpu.getSystemCpuUsage() != null && preCpu.getSystemCpuUsage() != null &&
+                cpu.getCpuUsage().getTotalUsage() != null && preCpu.getCpuUsage().getTotalUsage() != null) {
+            // Same formula as docker stats
+            long cpuDelta = cpu.getCpuUsage().getTotalUsage() - preCpu.getCpuUsage().getTotalUsage();
+            long systemDelta = cpu.getSystemCpuUsage() - preCpu.getSystemCpuUsage();
+            long cpus = cpu.getOnlineCpus() != null ? cpu.getOnlineCpus() :
+                    cpu.getCpuUsage().getPercpuUsage() != null ? cpu.getCpuUsage().getPercpuUsage().size() : 1;
+            if (systemDelta > 0 && cpuDelta >= 0) {
+                metrics.put("container.cpu_percent", Math.round(cpuDelta * 10000.0 * cpus / systemDelta) / 100.0);
+            }
+        }
+        if (statistics.getMemoryStats() != null && statistics.getMemoryStats().getUsage() != null) {
+            metrics.put("container.memory_bytes", statistics.getMemoryStats().getUsage());
+        }
+    }
+
+    synchronized void add(NodeStatsSample sample) {
+        if (samples.size() == capacity) {
+            samples.removeFirst();
+        }
+        samples.addLast(sample);
+    }
+
+    synchronized List<NodeStatsSample> getSamples() {
+        return new ArrayList<>(samples);
+    }
+
+    /**
+     * Write the samples to a file. A file with the {@code .json} extension gets a json array of samples,
+     * any other file gets CSV with one column per metric.
+     * @param report    The file to write
+     * @throws IOException if the file can not be written
+     */
+    void writeReport(Path report) throws IOException {
+        List<NodeStatsSample> samples = getSamples();
+        Path parent = report.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        if (report.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json")) {
+            ArrayNode array = MAPPER.createArrayNode();
+            for (NodeStatsSample sample : samples) {
+                ObjectNode json = array.addObject();
+                json.put("timestamp", sample.getTimestamp().toString());
+                for (Map.Entry<String, Number> metric : sample.getMetrics().entrySet()) {
+                    json.putPOJO(metric.getKey(), metric.getValue());
+                }
+            }
+            Files.write(report, MAPPER.writeValueAsBytes(array));
+            return;
+        }
+
+        Set<String> columns = new LinkedHashSet<>();
+        for (NodeStatsSample sample : samples) {
+            columns.addAll(sample.getMetrics().keySet());
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+            writer.write("timestamp");
+            for (String column : columns) {
+                writer.write(',');
+                writer.write(column);
+            }
+            writer.newLine();
+            for (NodeStatsSample sample : samples) {
+                writer.write(sample.getTimestamp().toString());
+                for (String column : columns) {
+                    writer.write(',');
+                    Number value = sample.get(column);
+                    if (value != null) {
+                        writer.write(value.toString());
+                    }
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    private static class DockerStatsCallback extends ResultCallbackTemplate<DockerStatsCallback, Statistics> {
+        private volatile Statistics latest;
+
+        @Override
+        public void onNext(Statistics statistics) {
+            latest = statistics;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves official elasticsearch plugins to local zip files so images can be built without internet access.
+ * <p>
+ * Resolved plugins are stored in a cache directory, under a directory named after the SHA-256 of their content:
+ * {@code <cache>/<sha256>/<plugin>-<version>.zip}. A {@code <cache>/<plugin>-<version>.sha256} file gives the
+ * hash of a plugin version. Plugins which are not in the cache yet are read from the local maven repository
+ * ({@code org.elasticsearch.plugin:<plugin>:<version>:zip}) or downloaded from a mirror which has the same
+ * layout as https://artifacts.elastic.co/downloads/elasticsearch-plugins ({@code <mirror>/<plugin>/<plugin>-<version>.zip}).
+ * Files coming from the local maven repository are hard linked into the cache when possible.
+ */
+final class PluginResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(PluginResolver.class);
+
+    static final Path DEFAULT_CACHE_DIR = Paths.get(System.getProperty("user.home"), ".testcontainers-elasticsearch", "plugins");
+    static final Path DEFAULT_MAVEN_REPOSITORY = Paths.get(System.getProperty("user.home"), ".m2", "repository");
+    static final String DEFAULT_MIRROR = System.getProperty("elasticsearch.plugins.mirror");
+    static final Duration DEFAULT_MIRROR_TIMEOUT = Duration.ofSeconds(Long.getLong("elasticsearch.plugins.mirror.timeout", 10));
+
+    private static final Pattern OFFICIAL_PLUGIN = Pattern.compile("[a-z0-9-]+");
+
+    private final Path cacheDir;
+    private final Path mavenRepository;
+    private final String mirror;
+    private final PluginStaging staging;
+    private Duration mirrorTimeout = DEFAULT_MIRROR_TIMEOUT;
+
+    PluginResolver(Path cacheDir, Path mavenRepository, String mirror, PluginStaging staging) {
+        this.cacheDir = cacheDir;
+        this.mavenRepository = mavenRepository;
+        this.mirror = mirror;
+        this.staging = staging;
+    }
+
+    /**
+     * Define how long we wait for the mirror to connect and then to send data. When it times out, the plugin
+     * is not resolved and is installed from within the container as usual.
+     * @param mirrorTimeout defaults to the elasticsearch.plugins.mirror.timeout system property (in seconds) or 10s
+     * @return this
+     */
+    PluginResolver withMirrorTimeout(Duration mirrorTimeout) {
+        this.mirrorTimeout = mirrorTimeout;
+        return this;
+    }
+
+    /**
+     * Find a local zip file for a plugin
+     * @param plugin    Plugin name like discovery-gce
+     * @param version   Elasticsearch version
+     * @return the zip file in the cache or null if the plugin is not an official one or can not be found
+     */
+    Path resolve(String plugin, String version) {
+        if (!OFFICIAL_PLUGIN.matcher(plugin).matches()) {
+            return null;
+        }
+        String fileName = plugin + "-" + version + ".zip";
+        Path index = cacheDir.resolve(plugin + "-" + version + ".sha256");
+        try {
+            if (Files.exists(index)) {
+                String hash = new String(Files.readAllBytes(index), StandardCharsets.UTF_8).trim();
+                Path cached = cacheDir.resolve(hash).resolve(fileName);
+                if (Files.exists(cached)) {
+                    logger.debug("Plugin [{}] found in cache [{}]", plugin, cached);
+                    return cached;
+                }
+            }
+
+            Path fromMaven = mavenRepository.resolve(Paths.get("org", "elasticsearch", "plugin", plugin, version, fileName));
+            if (Files.exists(fromMaven)) {
+                logger.debug("Plugin [{}] found in maven repository [{}]", plugin, fromMaven);
+                String hash = staging.digest(fromMaven);
+                Path target = cacheDir.resolve(hash).resolve(fileName);
+                staging.link(fromMaven, target);
+                Files.write(index, hash.getBytes(StandardCharsets.UTF_8));
+                return target;
+            }
+
+            if (mirror != null) {
+                String url = mirror + (mirror.endsWith("/") ? "" : "/") + plugin + "/" + fileName;
+                logger.debug("Downloading plugin [{}] from [{}]", plugin, url);
+                URLConnection connection = new URL(url).openConnection();
+                connection.setConnectTimeout((int) mirrorTimeout.toMillis());
+                connection.setReadTimeout((int) mirrorTimeout.toMillis());
+                try (InputStream is = connection.getInputStream()) {
+                    return store(is, fileName, index);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Can not resolve plugin [{}] locally: {}", plugin, e.getMessage());
+        }
+        return null;
+    }
+
+    private Path store(InputStream source, String fileName, Path index) throws IOException {
+        Files.createDirectories(cacheDir);
+        Path tmp = Files.createTempFile(cacheDir, fileName, ".tmp");
+        try {
+            MessageDigest digest = Digests.newDigest();
+            try (InputStream is = new DigestInputStream(source, digest)) {
+                Files.copy(is, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            String hash = Digests.toHex(digest.digest());
+            staging.copied(Files.size(tmp));
+            Path target = cacheDir.resolve(hash).resolve(fileName);
+            Files.createDirectories(target.getParent());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.write(index, hash.getBytes(StandardCharsets.UTF_8));
+            logger.debug("Plugin [{}] stored in cache [{}]", fileName, target);
+            return target;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.images.builder.ImageFromDockerfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+/**
+ * Moves plugins zip files around without copying them when we can.
+ * <p>
+ * The SHA-256 of every file we see is kept in a manifest file, keyed by the file path and
+ * stamped with its size and last modification time, so unchanged files are never read again
+ * to compute the image hash. Files are hard linked instead of being copied when the source
+ * and the target are on the same file system, and are streamed from where they are to the
+ * docker build context. It also counts the bytes we had to copy and the bytes we reused.
+ */
+final class PluginStaging {
+
+    private static final Logger logger = LoggerFactory.getLogger(PluginStaging.class);
+
+    static final String MANIFEST_FILE = "digests.properties";
+
+    // Several containers can save the same manifest at the same time
+    private static final Object MANIFEST_LOCK = new Object();
+
+    private final Path manifestFile;
+    private final Properties manifest = new Properties();
+    private final Properties updates = new Properties();
+
+    private long bytesCopied = 0;
+    private long bytesReused = 0;
+    private long bytesHashed = 0;
+
+    PluginStaging(Path manifestFile) {
+        this.manifestFile = manifestFile;
+        load(manifest);
+    }
+
+    /**
+     * Get the SHA-256 of a file, from the manifest if the file did not change since we last read it
+     * @param file  File to hash
+     * @return the hexadecimal SHA-256 of the file content
+     * @throws IOException if the file can not be read
+     */
+    synchronized String digest(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        String stamp = Files.size(path) + ":" + Files.getLastModifiedTime(path).toMillis() + ":";
+        String entry = manifest.getProperty(path.toString());
+        if (entry != null && entry.startsWith(stamp)) {
+            return entry.substring(stamp.length());
+        }
+
+        logger.trace("Computing the digest of [{}]", path);
+        MessageDigest digest = Digests.newDigest();
+        Digests.update(digest, path);
+        String hash = Digests.toHex(digest.digest());
+        bytesHashed += Files.size(path);
+        manifest.setProperty(path.toString(), stamp + hash);
+        updates.setProperty(path.toString(), stamp + hash);
+        return hash;
+    }
+
+    /**
+     * Make a file available under another name. It is hard linked when possible and copied otherwise.
+     * @param source    Existing file
+     * @param target    File to create. Nothing is done if it already exists.
+     * @throws IOException if the file can not be linked nor copied
+     */
+    synchronized void link(Path source, Path target) throws IOException {
+        long size = Files.size(source);
+        if (Files.exists(target)) {
+            bytesReused += size;
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+            logger.trace("[{}] linked to [{}]", target, source);
+            bytesReused += size;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Not the same file system or links are not supported
+            logger.trace("Can not link [{}] to [{}]: {}. Copying it.", target, source, e.getMessage());
+            Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            bytesCopied += size;
+        }
+    }
+
+    /**
+     * Count bytes which had to be written to disk, like a download
+     * @param bytes Number of bytes
+     */
+    synchronized void copied(long bytes) {
+        bytesCopied += bytes;
+    }
+
+    /**
+     * Add a file to a docker build context. The file is read where it is when the context is sent.
+     * @param image     Image to build
+     * @param path      Path of the file in the build context
+     * @param source    Local file
+     * @throws IOException if the file can not be read
+     */
+    synchronized void addToContext(ImageFromDockerfile image, String path, Path source) throws IOException {
+        image.withFileFromPath(path, source);
+        bytesReused += Files.size(source);
+    }
+
+    synchronized long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    synchronized long getBytesReused() {
+        return bytesReused;
+    }
+
+    synchronized long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    /**
+     * Write the new digests to the manifest file. Digests added in the meantime by other
+     * containers are kept.
+     */
+    void save() {
+        Properties toSave;
+        synchronized (this) {
+            if (updates.isEmpty()) {
+                return;
+            }
+            toSave = new Properties();
+            toSave.putAll(updates);
+            updates.clear();
+        }
+
+        synchronized (MANIFEST_LOCK) {
+            Properties merged = new Properties();
+            load(merged);
+            merged.putAll(toSave);
+            try {
+                Files.createDirectories(manifestFile.getParent());
+                Path tmp = Files.createTempFile(manifestFile.getParent(), MANIFEST_FILE, ".tmp");
+                try {
+                    try (OutputStream os = Files.newOutputStream(tmp)) {
+                        merged.store(os, "SHA-256 of plugins files: <size>:<last modified>:<sha256>");
+                    }
+                    Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e) {
+                logger.warn("Can not write the plugins digest manifest [{}]: {}", manifestFile, e.getMessage());
+            }
+        }
+    }
+
+    private void load(Properties properties) {
+        if (!Files.exists(manifestFile)) {
+            return;
+        }
+        try (InputStream is = Files.newInputStream(manifestFile)) {
+            properties.load(is);
+        } catch (IOException e) {
+            logger.warn("Can not read the plugins digest manifest [{}]: {}", manifestFile, e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return bytesCopied + " bytes copied, " + bytesReused + " bytes reused, " + bytesHashed + " bytes hashed";
+    }
+}
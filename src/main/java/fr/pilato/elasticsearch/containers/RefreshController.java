@@ -0,0 +1,263 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.elasticsearch.client.RestClient;
+import org.rnorth.ducttape.Preconditions;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.json;
+
+/**
+ * Replaces sleeps and blind {@code _refresh} calls in tests which index then search.
+ * <p>
+ * Indices are switched to manual refresh so indexing runs at full speed. Writes sent with the client of
+ * {@link ElasticsearchResource#clientFactory()} mark their indices as pending (other writes can be declared with
+ * {@link #written(String...)}), and a single {@link #refresh()} before reading refreshes all the pending indices
+ * at once, or does nothing if there was no write since the last refresh.
+ * <pre>
+ * RefreshController refresh = elasticsearch.refreshController();
+ * refresh.manualRefreshForNewIndices("test-*");
+ * // index many documents...
+ * refresh.refresh();
+ * // search
+ * </pre>
+ */
+public class RefreshController {
+
+    static final String MANUAL_REFRESH_TEMPLATE = ".testcontainers-manual-refresh";
+    static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofSeconds(1);
+    // Above this, waiting for the next refresh would make a test slower than refreshing
+    private static final Duration MAX_WAIT_FOR_INTERVAL = Duration.ofSeconds(1);
+
+    private static final Set<String> WRITE_METHODS = new HashSet<>(Arrays.asList("PUT", "POST", "DELETE"));
+    private static final Set<String> WRITE_ENDPOINTS = new HashSet<>(Arrays.asList(
+            "_bulk", "_doc", "_create", "_update", "_update_by_query", "_delete_by_query"));
+    private static final String ALL = "_all";
+
+    private final RestClient client;
+    private final int majorVersion;
+    private final Duration refreshInterval;
+    private final Set<String> pending = new TreeSet<>();
+    private final Set<String> manual = new HashSet<>();
+    private final Set<String> templatePatterns = new LinkedHashSet<>();
+
+    /**
+     * @param client            The client to send requests with
+     * @param majorVersion      The major version of elasticsearch
+     * @param refreshInterval   The refresh interval of the indices which are not in manual refresh mode
+     */
+    RefreshController(RestClient client, int majorVersion, Duration refreshInterval) {
+        this.client = client;
+        this.majorVersion = majorVersion;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Disable the periodic refresh of existing indices
+     * @param indices   Index names or patterns
+     * @throws IOException if something goes wrong
+     */
+    public void manualRefresh(String... indices) throws IOException {
+        updateRefreshInterval(indices, "\"-1\"");
+        synchronized (this) {
+            manual.addAll(Arrays.asList(indices));
+        }
+    }
+
+    /**
+     * Disable the periodic refresh of the indices which will be created with a name matching a pattern.
+     * It uses the {@value #MANUAL_REFRESH_TEMPLATE} index template (with order 1) which is removed by a full reset.
+     * @param indexPattern  Index pattern like test-*
+     * @throws IOException if something goes wrong
+     */
+    public synchronized void manualRefreshForNewIndices(String indexPattern) throws IOException {
+        Set<String> patterns = new LinkedHashSet<>(templatePatterns);
+        patterns.add(indexPattern);
+        Preconditions.check("elasticsearch 5 templates only support one pattern", majorVersion >= 6 || patterns.size() == 1);
+        String patternsJson = majorVersion >= 6 ?
+                "\"index_patterns\":[\"" + String.join("\",\"", patterns) + "\"]" :
+                "\"template\":\"" + indexPattern + "\"";
+        client.performRequest("PUT", "/_template/" + MANUAL_REFRESH_TEMPLATE, Collections.emptyMap(),
+                json("{" + patternsJson + ",\"order\":1,\"settings\":{\"index.refresh_interval\":\"-1\"}}"));
+        templatePatterns.add(indexPattern);
+        manual.add(indexPattern);
+    }
+
+    /**
+     * Enable again the periodic refresh of existing indices, with their default interval
+     * @param indices   Index names or patterns
+     * @throws IOException if something goes wrong
+     */
+    public void autoRefresh(String... indices) throws IOException {
+        updateRefreshInterval(indices, "null");
+        synchronized (this) {
+            manual.removeAll(Arrays.asList(indices));
+        }
+    }
+
+    private void updateRefreshInterval(String[] indices, String interval) throws IOException {
+        Preconditions.check("at least one index is needed", indices.length > 0);
+        client.performRequest("PUT", "/" + String.join(",", indices) + "/_settings", Collections.emptyMap(),
+                json("{\"index\":{\"refresh_interval\":" + interval + "}}"));
+    }
+
+    /**
+     * Declare indices which have been written to with another client
+     * @param indices   Index names
+     */
+    public synchronized void written(String... indices) {
+        pending.addAll(Arrays.asList(indices));
+    }
+
+    /**
+     * Called for every request sent by the client factory
+     * @param method    Http method
+     * @param uri       Path and query string
+     */
+    void sent(String method, String uri) {
+        String index = writtenIndex(method, uri);
+        if (index != null) {
+            written(index);
+        }
+    }
+
+    /**
+     * Find the index a request writes to
+     * @return the index (or indices, comma separated), {@value #ALL} if we can't know, or null if it's not a write
+     * or if the request asks for a refresh itself
+     */
+    static String writtenIndex(String method, String uri) {
+        if (!WRITE_METHODS.contains(method)) {
+            return null;
+        }
+        int query = uri.indexOf('?');
+        String path = query < 0 ? uri : uri.substring(0, query);
+        if (query >= 0 && refreshes(uri.substring(query + 1))) {
+            return null;
+        }
+        String[] segments = path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
+        if (segments[0].isEmpty()) {
+            return null;
+        }
+        if (segments[0].startsWith("_")) {
+            // Only a bulk request without an index in the path can write documents
+            return segments[0].equals("_bulk") ? ALL : null;
+        }
+        if (segments.length == 1) {
+            // Creating or removing an index
+            return null;
+        }
+        for (int i = 1; i < segments.length; i++) {
+            if (segments[i].startsWith("_") && !WRITE_ENDPOINTS.contains(segments[i])) {
+                // _search, _refresh, _settings, _mapping...
+                return null;
+            }
+        }
+        return segments[0];
+    }
+
+    private static boolean refreshes(String queryString) {
+        for (String param : queryString.split("&")) {
+            if (param.equals("refresh") || param.equals("refresh=true") || param.equals("refresh=wait_for") || param.equals("refresh=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the indices written to since the last refresh
+     */
+    public synchronized Set<String> getPendingIndices() {
+        return Collections.unmodifiableSet(new TreeSet<>(pending));
+    }
+
+    /**
+     * Refresh the indices written to since the last refresh, with a single request
+     * @return true if a refresh has been sent, false if there was nothing to refresh
+     * @throws IOException if something goes wrong
+     */
+    public boolean refresh() throws IOException {
+        Set<String> indices;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return false;
+            }
+            indices = new TreeSet<>(pending);
+            pending.clear();
+        }
+        String endpoint = indices.contains(ALL) ? "/_refresh" : "/" + String.join(",", indices) + "/_refresh";
+        Map<String, String> params = new HashMap<>();
+        // Pending indices may have been removed by a reset in the mean time
+        params.put("ignore_unavailable", "true");
+        params.put("allow_no_indices", "true");
+        try {
+            client.performRequest("POST", endpoint, params);
+        } catch (IOException e) {
+            synchronized (this) {
+                pending.addAll(indices);
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Parameters to add to a write request which must be visible to searches as soon as it returns.
+     * With a short periodic refresh, we wait for the next refresh ({@code refresh=wait_for}). As it would never
+     * happen on an index in manual refresh mode, and would take up to 30 seconds with the index defaults of
+     * {@link ElasticsearchContainer#withFastEphemeralStorage(String)}, we force a refresh of the written shards
+     * ({@code refresh=true}) when the refresh interval is longer than a second.
+     * @param index The index to write to
+     * @return the request parameters
+     */
+    public synchronized Map<String, String> waitFor(String index) {
+        boolean manualRefresh = false;
+        for (String pattern : manual) {
+            if (matches(pattern, index)) {
+                manualRefresh = true;
+                break;
+            }
+        }
+        boolean slowRefresh = manualRefresh || refreshInterval.compareTo(MAX_WAIT_FOR_INTERVAL) > 0;
+        return Collections.singletonMap("refresh", slowRefresh ? "true" : "wait_for");
+    }
+
+    static boolean matches(String pattern, String index) {
+        for (String part : pattern.split(",")) {
+            if (part.equals(index) || part.equals(ALL) ||
+                    (part.endsWith("*") && index.startsWith(part.substring(0, part.length() - 1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
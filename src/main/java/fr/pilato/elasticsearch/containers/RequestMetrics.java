@@ -0,0 +1,204 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, size and error metrics of the requests sent by the clients of a {@link RestClientFactory}.
+ * <p>
+ * Requests are grouped by endpoint: the http method and the path where every segment which does not start
+ * with an underscore is replaced by {@code *}, except the API names following {@code _cat}, {@code _cluster},
+ * {@code _ingest} or {@code _nodes}. So {@code GET /my-index/_search?q=foo} is counted as
+ * {@code GET /}{@code *}{@code /_search} and {@code GET /_cluster/health/my-index} as
+ * {@code GET /_cluster/health/}{@code *}. Latencies are recorded in microseconds in HDR histograms and measure
+ * the time until the response headers are received.
+ */
+public class RequestMetrics {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final Set<String> API_GROUPS = new HashSet<>(Arrays.asList("_cat", "_cluster", "_ingest", "_nodes"));
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Get the metrics of one endpoint
+     * @param endpoint  Endpoint like {@code GET /}{@code *}{@code /_search}
+     * @return the metrics or null if no request has been sent to this endpoint
+     */
+    public Endpoint getEndpoint(String endpoint) {
+        return endpoints.get(endpoint);
+    }
+
+    /**
+     * @return the metrics of all the endpoints, sorted by endpoint
+     */
+    public Map<String, Endpoint> getEndpoints() {
+        return Collections.unmodifiableMap(new TreeMap<>(endpoints));
+    }
+
+    /**
+     * Forget everything which has been recorded so far, like requests sent while warming up
+     */
+    public void reset() {
+        endpoints.clear();
+    }
+
+    Endpoint sent(String method, String uri, long requestBytes) {
+        Endpoint endpoint = endpoints.computeIfAbsent(endpoint(method, uri), k -> new Endpoint());
+        endpoint.requests.increment();
+        if (requestBytes > 0) {
+            endpoint.requestBytes.add(requestBytes);
+        }
+        return endpoint;
+    }
+
+    static String endpoint(String method, String uri) {
+        int query = uri.indexOf('?');
+        String path = query < 0 ? uri : uri.substring(0, query);
+        StringBuilder endpoint = new StringBuilder(method).append(' ');
+        int length = endpoint.length();
+        String previous = null;
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                boolean keep = segment.startsWith("_") || API_GROUPS.contains(previous);
+                endpoint.append('/').append(keep ? segment : "*");
+                previous = segment;
+            }
+        }
+        if (endpoint.length() == length) {
+            endpoint.append('/');
+        }
+        return endpoint.toString();
+    }
+
+    /**
+     * A human readable table with one line per endpoint
+     * @return the summary
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder(String.format("%-40s %8s %7s %7s %9s %9s %9s %9s %11s %11s%n",
+                "endpoint", "requests", "errors", "failed", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "sent(b)", "received(b)"));
+        for (Map.Entry<String, Endpoint> entry : getEndpoints().entrySet()) {
+            Endpoint endpoint = entry.getValue();
+            Histogram latencies = endpoint.getLatencies();
+            summary.append(String.format("%-40s %8d %7d %7d %9.3f %9.3f %9.3f %9.3f %11d %11d%n", entry.getKey(),
+                    endpoint.getRequests(), endpoint.getErrors(), endpoint.getFailures(),
+                    millis(latencies.getValueAtPercentile(50)), millis(latencies.getValueAtPercentile(90)),
+                    millis(latencies.getValueAtPercentile(99)), millis(latencies.getMaxValue()),
+                    endpoint.getRequestBytes(), endpoint.getResponseBytes()));
+        }
+        return summary.toString();
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+
+    /**
+     * Metrics of one endpoint
+     */
+    public static class Endpoint {
+        private final Histogram latencies = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder responses = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+
+        void received(long startNanos, int status, long bytes) {
+            latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+            responses.increment();
+            if (status >= 400) {
+                errors.increment();
+            }
+            if (bytes > 0) {
+                responseBytes.add(bytes);
+            }
+        }
+
+        /**
+         * @return a copy of the latency histogram, in microseconds
+         */
+        public Histogram getLatencies() {
+            return latencies.copy();
+        }
+
+        /**
+         * @return the number of requests sent, including retries
+         */
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        /**
+         * @return the number of responses with a 4xx or 5xx status code
+         */
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @return the number of requests which did not get any response (connection error, timeout...)
+         * or which are still running
+         */
+        public long getFailures() {
+            return Math.max(0, requests.sum() - responses.sum());
+        }
+
+        /**
+         * @return the share of requests which got an error or no response at all, between 0 and 1
+         */
+        public double getErrorRate() {
+            long sent = getRequests();
+            return sent == 0 ? 0 : (getErrors() + getFailures()) / (double) sent;
+        }
+
+        /**
+         * @return the size of the request bodies in bytes
+         */
+        public long getRequestBytes() {
+            return requestBytes.sum();
+        }
+
+        /**
+         * @return the size of the response bodies in bytes, as announced by their Content-Length header
+         */
+        public long getResponseBytes() {
+            return responseBytes.sum();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.message.BasicHeader;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.rnorth.ducttape.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Creates a Rest client connected to a node and records the {@link RequestMetrics} of every request it sends.
+ * The client is created once and is closed with the factory.
+ * <pre>
+ * RestClient client = elasticsearch.clientFactory().withMaxConnections(50).getClient();
+ * // ... run the test
+ * RequestMetrics.Endpoint search = elasticsearch.clientFactory().getMetrics().getEndpoint("GET /&#42;/_search");
+ * </pre>
+ */
+public class RestClientFactory implements Closeable {
+
+    /**
+     * Same as the elasticsearch Rest client
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+    private static final String ENDPOINT_ATTRIBUTE = RestClientFactory.class.getName() + ".endpoint";
+    private static final String START_ATTRIBUTE = RestClientFactory.class.getName() + ".start";
+
+    private final HttpHost host;
+    private final String password;
+    private final RequestMetrics metrics = new RequestMetrics();
+    private final List<BiConsumer<String, String>> requestListeners = new CopyOnWriteArrayList<>();
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private RestClient client;
+
+    /**
+     * Create a factory
+     * @param host      The node
+     * @param password  Password of the elastic user. Can be null when security is disabled.
+     */
+    public RestClientFactory(HttpHost host, String password) {
+        this.host = host;
+        this.password = password;
+    }
+
+    /**
+     * Define the size of the connection pool, which is the maximum number of requests running at the same time.
+     * It must be called before the client is created.
+     * @param maxConnections    defaults to 10
+     * @return this
+     */
+    public synchronized RestClientFactory withMaxConnections(int maxConnections) {
+        Preconditions.check("maxConnections must be positive", maxConnections > 0);
+        Preconditions.check("client has already been created", client == null || this.maxConnections == maxConnections);
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Get the client, creating it if needed
+     * @return a Rest client which records the metrics of its requests
+     */
+    public synchronized RestClient getClient() {
+        if (client == null) {
+            RestClientBuilder builder = RestClient.builder(host);
+            if (password != null && !password.isEmpty()) {
+                // Sent with every request. Otherwise each request would be sent twice: once to get the
+                // 401 challenge and once with the credentials, and the metrics would count both.
+                String credentials = "elastic:" + password;
+                builder.setDefaultHeaders(new Header[] { new BasicHeader("Authorization",
+                        "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8))) });
+            }
+            client = builder
+                    .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+                            .setMaxConnTotal(maxConnections)
+                            .setMaxConnPerRoute(maxConnections)
+                            .addInterceptorFirst(recordRequest())
+                            .addInterceptorLast(recordResponse()))
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * Get notified of every request sent by the client
+     * @param listener  Called with the http method and the uri (path and query string)
+     */
+    void addRequestListener(BiConsumer<String, String> listener) {
+        requestListeners.add(listener);
+    }
+
+    private HttpRequestInterceptor recordRequest() {
+        return (request, context) -> {
+            for (BiConsumer<String, String> listener : requestListeners) {
+                listener.accept(request.getRequestLine().getMethod(), request.getRequestLine().getUri());
+            }
+            long bytes = 0;
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                bytes = entity == null ? 0 : entity.getContentLength();
+            }
+            context.setAttribute(ENDPOINT_ATTRIBUTE, metrics.sent(request.getRequestLine().getMethod(),
+                    request.getRequestLine().getUri(), bytes));
+            context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        };
+    }
+
+    private static HttpResponseInterceptor recordResponse() {
+        // Called when the response headers are received
+        return (response, context) -> {
+            Object endpoint = context.getAttribute(ENDPOINT_ATTRIBUTE);
+            Object start = context.getAttribute(START_ATTRIBUTE);
+            if (endpoint instanceof RequestMetrics.Endpoint && start instanceof Long) {
+                ((RequestMetrics.Endpoint) endpoint).received((Long) start, response.getStatusLine().getStatusCode(),
+                        contentLength(response.getFirstHeader("Content-Length")));
+            }
+        };
+    }
+
+    private static long contentLength(Header header) {
+        if (header == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the metrics of the requests sent so far
+     */
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.CreateContainerCmd;
+import org.testcontainers.DockerClientFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps a docker client so the containers it creates belong to another testcontainers session than the one of
+ * this JVM. The reaper of this JVM removes all the containers of its session when the JVM exits, so this is how
+ * a container can outlive the JVM which started it. Whoever uses the other session has to remove the container.
+ */
+final class SessionDockerClient {
+
+    private SessionDockerClient() {
+    }
+
+    /**
+     * @param client    The docker client to wrap
+     * @param sessionId The session the containers belong to
+     * @return a docker client which labels the containers it creates with the session
+     */
+    static DockerClient wrap(DockerClient client, String sessionId) {
+        return (DockerClient) Proxy.newProxyInstance(DockerClient.class.getClassLoader(), new Class<?>[] { DockerClient.class },
+                (proxy, method, args) -> {
+                    Object result = invoke(client, method, args);
+                    if (result instanceof CreateContainerCmd) {
+                        return wrap((CreateContainerCmd) result, sessionId);
+                    }
+                    return result;
+                });
+    }
+
+    private static CreateContainerCmd wrap(CreateContainerCmd command, String sessionId) {
+        return (CreateContainerCmd) Proxy.newProxyInstance(CreateContainerCmd.class.getClassLoader(), new Class<?>[] { CreateContainerCmd.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("withLabels") && args[0] instanceof Map) {
+                        // testcontainers always adds the session of this JVM last
+                        Map<Object, Object> labels = new HashMap<>((Map<?, ?>) args[0]);
+                        labels.put(DockerClientFactory.TESTCONTAINERS_SESSION_ID_LABEL, sessionId);
+                        args = new Object[] { labels };
+                    }
+                    Object result = invoke(command, method, args);
+                    // Keep the fluent calls on the wrapper
+                    return result == command ? proxy : result;
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
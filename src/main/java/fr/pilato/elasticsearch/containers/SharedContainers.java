@@ -0,0 +1,158 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Registry of containers shared by all the resources running in the same JVM with the same configuration.
+ * <p>
+ * Each acquire increments a reference counter and each release decrements it. When nobody uses
+ * a container anymore, it is stopped after a small idle delay (defined in seconds with the
+ * {@code elasticsearch.shared.idle.timeout} system property, 30 by default) so the next test
+ * class can reuse it. Remaining containers are stopped when the JVM exits.
+ */
+final class SharedContainers {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedContainers.class);
+
+    static final long IDLE_TIMEOUT_SECONDS = Long.getLong("elasticsearch.shared.idle.timeout", 30);
+
+    private static final Map<String, Entry> CONTAINERS = new HashMap<>();
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "elasticsearch-shared-containers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(SharedContainers::stopAll, "elasticsearch-shared-containers-shutdown"));
+    }
+
+    private static class Entry {
+        private final ElasticsearchContainer container;
+        private int references = 0;
+        private boolean started = false;
+        private ScheduledFuture<?> pendingStop;
+
+        private Entry(ElasticsearchContainer container) {
+            this.container = container;
+        }
+    }
+
+    private SharedContainers() {
+    }
+
+    /**
+     * Get the running container for this key, starting it if needed
+     * @param key       Key which identifies the container configuration
+     * @param factory   Creates the container if it does not exist yet
+     * @return a started container
+     */
+    static ElasticsearchContainer acquire(String key, Supplier<ElasticsearchContainer> factory) {
+        Entry entry;
+        synchronized (SharedContainers.class) {
+            entry = CONTAINERS.computeIfAbsent(key, k -> new Entry(factory.get()));
+            entry.references++;
+            if (entry.pendingStop != null) {
+                entry.pendingStop.cancel(false);
+                entry.pendingStop = null;
+            }
+        }
+
+        // We start outside of the global lock so containers with other keys can start in parallel
+        synchronized (entry) {
+            if (!entry.started) {
+                try {
+                    entry.container.start();
+                    entry.started = true;
+                } catch (RuntimeException e) {
+                    synchronized (SharedContainers.class) {
+                        entry.references--;
+                        if (entry.references == 0) {
+                            CONTAINERS.remove(key, entry);
+                        }
+                    }
+                    throw e;
+                }
+            } else {
+                logger.debug("Reusing shared elasticsearch container [{}]", entry.container.getContainerId());
+            }
+        }
+        return entry.container;
+    }
+
+    /**
+     * Release a container previously acquired.
+     * @param key   Key which identifies the container configuration
+     */
+    static void release(String key) {
+        Entry entry;
+        synchronized (SharedContainers.class) {
+            entry = CONTAINERS.get(key);
+            if (entry == null || --entry.references > 0) {
+                return;
+            }
+            if (IDLE_TIMEOUT_SECONDS > 0) {
+                entry.pendingStop = SCHEDULER.schedule(() -> stopIfUnused(key, entry), IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                return;
+            }
+            CONTAINERS.remove(key);
+        }
+        stop(key, entry);
+    }
+
+    private static void stopIfUnused(String key, Entry entry) {
+        synchronized (SharedContainers.class) {
+            if (entry.references > 0 || !CONTAINERS.remove(key, entry)) {
+                return;
+            }
+        }
+        stop(key, entry);
+    }
+
+    private static void stop(String key, Entry entry) {
+        logger.debug("Stopping shared elasticsearch container for [{}]", key);
+        entry.container.stop();
+    }
+
+    private static void stopAll() {
+        List<Entry> entries;
+        synchronized (SharedContainers.class) {
+            entries = new ArrayList<>(CONTAINERS.values());
+            CONTAINERS.clear();
+        }
+        for (Entry entry : entries) {
+            entry.container.stop();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import java.time.Duration;
+
+/**
+ * Gets notified each time a container startup phase ends
+ * @see ElasticsearchContainer#withStartupListener(StartupListener)
+ */
+@FunctionalInterface
+public interface StartupListener {
+
+    /**
+     * Called when a phase ends. A phase we could not observe is not reported and its
+     * duration is included in the next phase.
+     * @param phase     The phase which just ended
+     * @param duration  How long the phase took
+     */
+    void onPhase(StartupPhase phase, Duration duration);
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+/**
+ * Phases of an elasticsearch container startup, in the order they happen
+ */
+public enum StartupPhase {
+    /**
+     * Resolve plugins, compute the image hash and look for an existing image
+     */
+    RESOLVE,
+    /**
+     * Pull the official image or build the custom image
+     */
+    BUILD,
+    /**
+     * Create and start the docker container
+     */
+    CREATE,
+    /**
+     * Boot the JVM, until the node writes its first log line
+     */
+    START,
+    /**
+     * Bind the HTTP port, until it answers to a first request
+     */
+    PORT_OPEN,
+    /**
+     * Form the cluster, until the cluster health reaches the expected status
+     */
+    CLUSTER_READY
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Measures the startup phases of a container. Each phase lasts from the end of the previous one
+ * (or from the start) until it is marked as done. Only the first mark of a phase counts and
+ * a phase marked after a later phase is ignored.
+ */
+final class StartupTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupTimer.class);
+
+    private final List<StartupListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<StartupPhase, Duration> timings = new EnumMap<>(StartupPhase.class);
+    private long start = System.nanoTime();
+    private long last = start;
+
+    void addListener(StartupListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Forget previous timings and start measuring again
+     */
+    synchronized void reset() {
+        timings.clear();
+        start = System.nanoTime();
+        last = start;
+    }
+
+    /**
+     * Mark a phase as done
+     * @param phase The phase which just ended
+     */
+    void mark(StartupPhase phase) {
+        Duration duration;
+        synchronized (this) {
+            if (timings.containsKey(phase)) {
+                return;
+            }
+            for (StartupPhase done : timings.keySet()) {
+                if (done.compareTo(phase) > 0) {
+                    // A later phase already ended (like a log line we read after the port opened)
+                    return;
+                }
+            }
+            long now = System.nanoTime();
+            duration = Duration.ofNanos(now - last);
+            last = now;
+            timings.put(phase, duration);
+        }
+        logger.debug("Startup phase [{}] took [{}] ms", phase, duration.toMillis());
+        for (StartupListener listener : listeners) {
+            try {
+                listener.onPhase(phase, duration);
+            } catch (RuntimeException e) {
+                logger.warn("Startup listener failed for phase [{}]", phase, e);
+            }
+        }
+    }
+
+    synchronized boolean isDone(StartupPhase phase) {
+        return timings.containsKey(phase);
+    }
+
+    /**
+     * @return the duration of each phase which has been observed, in phase order
+     */
+    synchronized Map<StartupPhase, Duration> getTimings() {
+        return Collections.unmodifiableMap(new EnumMap<>(timings));
+    }
+
+    /**
+     * @return the time spent from the start until the last phase ended
+     */
+    synchronized Duration getTotal() {
+        return Duration.ofNanos(last - start);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BulkFixtureLoaderTest {
+
+    private static final byte[] RESPONSE = "{\"errors\":false}".getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private RestClient client;
+    private final AtomicInteger bulks = new AtomicInteger();
+    private final AtomicInteger answered = new AtomicInteger();
+    private volatile long responseDelayMillis = 0;
+    // Answers to the next bulk requests. When there is none, all the documents are indexed.
+    private final Queue<Answer> answers = new ConcurrentLinkedQueue<>();
+    // Number of documents and time of each bulk request
+    private final List<Integer> bulkDocs = new CopyOnWriteArrayList<>();
+    private final List<Long> bulkNanos = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            int lines = 0;
+            try (InputStream is = exchange.getRequestBody()) {
+                int b;
+                while ((b = is.read()) != -1) {
+                    if (b == '\n') {
+                        lines++;
+                    }
+                }
+            }
+            boolean bulk = exchange.getRequestURI().getPath().endsWith("/_bulk");
+            Answer answer = bulk ? answers.poll() : null;
+            if (bulk) {
+                bulks.incrementAndGet();
+                bulkDocs.add(lines / 2);
+                bulkNanos.add(System.nanoTime());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(responseDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int status = answer == null ? 200 : answer.status;
+            byte[] body = answer == null ? RESPONSE : answer.body;
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+            exchange.close();
+            if (bulk) {
+                answered.incrementAndGet();
+            }
+        });
+        server.start();
+        client = RestClient.builder(new HttpHost(server.getAddress().getHostString(), server.getAddress().getPort())).build();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        client.close();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testBatchBytesCountsUtf8Bytes() throws IOException {
+        // 100 characters but 200 bytes
+        String doc = "{\"text\":\"" + String.join("", Collections.nCopies(100, "\u00e9")) + "\"}\n";
+        String ndjson = String.join("", Collections.nCopies(4, doc));
+
+        BulkFixtureLoader.Result result = new BulkFixtureLoader(client)
+                .withBatchSize(1000)
+                .withBatchBytes(450)
+                .load("foo", new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(result.getIndexedDocs(), is(4L));
+        // 3 documents are more than 450 bytes
+        assertThat(bulks.get(), is(2));
+    }
+
+    @Test
+    public void testReadFailureWaitsForBatchesInFlight() {
+        responseDelayMillis = 300;
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("broken source");
+            }
+        };
+        InputStream ndjson = new SequenceInputStream(new ByteArrayInputStream("{\"foo\":\"bar\"}\n".getBytes(StandardCharsets.UTF_8)), failing);
+
+        try {
+            new BulkFixtureLoader(client).withBatchSize(1).load("foo", ndjson);
+            fail("We should have got the source failure");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("broken source"));
+        }
+        assertThat(bulks.get(), is(1));
+        assertThat(answered.get(), is(1));
+    }
+
+    @Test
+    public void testRetriesRejectedDocuments() throws IOException {
+        answers.add(new Answer(200, items(201, 429, 429)));
+        answers.add(new Answer(200, items(201, 429)));
+
+        BulkFixtureLoader.Result result = new BulkFixtureLoader(client)
+                .withBatchSize(3)
+                .withRetries(5, Duration.ofMillis(50))
+                .load("foo", documents(3));
+
+        assertThat(result.getIndexedDocs(), is(3L));
+        assertThat(result.getFailedDocs(), is(0L));
+        assertThat(result.getRetries(), is(2L));
+        // Only the rejected documents are sent again
+        assertThat(bulkDocs, is(Arrays.asList(3, 2, 1)));
+        assertBackoff(50, 100);
+    }
+
+    @Test
+    public void testRetriesRejectedRequests() throws IOException {
+        answers.add(new Answer(429, RESPONSE));
+        answers.add(new Answer(429, RESPONSE));
+
+        BulkFixtureLoader.Result result = new BulkFixtureLoader(client)
+                .withBatchSize(2)
+                .withRetries(5, Duration.ofMillis(50))
+                .load("foo", documents(2));
+
+        assertThat(result.getIndexedDocs(), is(2L));
+        assertThat(result.getFailedDocs(), is(0L));
+        assertThat(result.getRetries(), is(2L));
+        assertThat(bulkDocs, is(Arrays.asList(2, 2, 2)));
+        assertBackoff(50, 100);
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() {
+        answers.add(new Answer(200, items(201, 429)));
+        answers.add(new Answer(429, RESPONSE));
+        answers.add(new Answer(200, items(429)));
+
+        try {
+            new BulkFixtureLoader(client)
+                    .withBatchSize(2)
+                    .withRetries(2, Duration.ofMillis(10))
+                    .load("foo", documents(2));
+            fail("The rejected document should have failed the load");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Failed to load 1 documents into [foo]"));
+            assertThat(e.getCause().getMessage(), is("1 documents still rejected after 2 retries"));
+        }
+        assertThat(bulkDocs, is(Arrays.asList(2, 1, 1)));
+    }
+
+    @Test(timeout = 10000)
+    public void testUnexpectedResponseFailsTheBatch() {
+        // More items than documents
+        answers.add(new Answer(200, items(429, 429)));
+
+        try {
+            new BulkFixtureLoader(client).withBatchSize(1).load("foo", documents(1));
+            fail("The unexpected response should have failed the load");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Failed to load 1 documents into [foo]"));
+            assertThat(e.getCause() instanceof IndexOutOfBoundsException, is(true));
+        }
+    }
+
+    /**
+     * Check the delay between each bulk request and the previous one
+     */
+    private void assertBackoff(long... millis) {
+        assertThat(bulkNanos.size(), is(millis.length + 1));
+        for (int i = 0; i < millis.length; i++) {
+            long delay = TimeUnit.NANOSECONDS.toMillis(bulkNanos.get(i + 1) - bulkNanos.get(i));
+            assertThat("Retry " + (i + 1) + " was sent after " + delay + " ms", delay >= millis[i], is(true));
+        }
+    }
+
+    private static InputStream documents(int count) {
+        String ndjson = String.join("", Collections.nCopies(count, "{\"foo\":\"bar\"}\n"));
+        return new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A bulk response with errors
+     */
+    private static byte[] items(int... statuses) {
+        StringBuilder json = new StringBuilder("{\"errors\":true,\"items\":[");
+        for (int i = 0; i < statuses.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"index\":{\"status\":").append(statuses[i]).append("}}");
+        }
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Answer {
+        private final int status;
+        private final byte[] body;
+
+        private Answer(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CassetteServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordAndReplay() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("cassette.ndjson.gz");
+
+        // A fake node which counts the documents
+        AtomicInteger docs = new AtomicInteger();
+        HttpServer node = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        node.createContext("/", exchange -> {
+            try (InputStream is = exchange.getRequestBody()) {
+                while (is.read() != -1) {
+                    // We don't need the body
+                }
+            }
+            String path = exchange.getRequestURI().getPath();
+            byte[] body;
+            if (path.endsWith("/_count")) {
+                body = ("{\"count\":" + docs.get() + "}").getBytes(StandardCharsets.UTF_8);
+            } else if (exchange.getRequestMethod().equals("PUT")) {
+                docs.incrementAndGet();
+                body = "{\"result\":\"created\"}".getBytes(StandardCharsets.UTF_8);
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        node.start();
+
+        try (CassetteServer recorder = CassetteServer.record(file, new HttpHost("127.0.0.1", node.getAddress().getPort()))) {
+            try (RestClient client = RestClient.builder(recorder.getHost()).build()) {
+                scenario(client);
+            }
+        } finally {
+            node.stop(0);
+        }
+
+        // The node is gone but we get the same responses
+        try (CassetteServer replayer = CassetteServer.replay(file)) {
+            try (RestClient client = RestClient.builder(replayer.getHost()).build()) {
+                scenario(client);
+                // The last response is replayed again
+                assertThat(count(client), is("{\"count\":1}"));
+                try {
+                    client.performRequest("GET", "/bar/_count");
+                    fail("This request has never been recorded");
+                } catch (ResponseException e) {
+                    assertThat(e.getResponse().getStatusLine().getStatusCode(), is(500));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryBodies() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("binary.ndjson");
+        // Like a SMILE document: it is not valid UTF-8
+        byte[] binary = new byte[] { ':', ')', '\n', 3, (byte) 0xfa, (byte) 0x80, (byte) 0xff, 0 };
+
+        HttpServer node = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        node.createContext("/", exchange -> {
+            byte[] request = readFully(exchange.getRequestBody());
+            // Echo the request body
+            exchange.getResponseHeaders().add("Content-Type", "application/smile");
+            exchange.sendResponseHeaders(200, request.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(request);
+            }
+        });
+        node.start();
+
+        try (CassetteServer recorder = CassetteServer.record(file, new HttpHost("127.0.0.1", node.getAddress().getPort()))) {
+            try (RestClient client = RestClient.builder(recorder.getHost()).build()) {
+                assertThat(search(client, binary), is(binary));
+            }
+        } finally {
+            node.stop(0);
+        }
+        String recorded = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        assertThat(recorded, containsString("\"request_base64\":\"" + Base64.getEncoder().encodeToString(binary) + "\""));
+        assertThat(recorded, containsString("\"response_base64\""));
+
+        try (CassetteServer replayer = CassetteServer.replay(file)) {
+            try (RestClient client = RestClient.builder(replayer.getHost()).build()) {
+                assertThat(search(client, binary), is(binary));
+            }
+        }
+    }
+
+    @Test
+    public void testCassetteMode() {
+        assertThat(CassetteMode.parse("replay"), is(CassetteMode.REPLAY));
+        assertThat(CassetteMode.parse(" Record "), is(CassetteMode.RECORD));
+        try {
+            CassetteMode.parse("replya");
+            fail("replya is not a cassette mode");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("[replya]"));
+            assertThat(e.getMessage(), containsString("record, replay, auto"));
+        }
+    }
+
+    private byte[] search(RestClient client, byte[] body) throws IOException {
+        return EntityUtils.toByteArray(client.performRequest("POST", "/foo/_search", Collections.emptyMap(),
+                new NByteArrayEntity(body, ContentType.create("application/smile"))).getEntity());
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private void scenario(RestClient client) throws IOException {
+        assertThat(count(client), is("{\"count\":0}"));
+        client.performRequest("PUT", "/foo/doc/1", Collections.emptyMap(),
+                new NStringEntity("{\"foo\":\"bar\"}", ContentType.APPLICATION_JSON));
+        assertThat(count(client), is("{\"count\":1}"));
+        try {
+            client.performRequest("GET", "/foo/doc/2");
+            fail("We expect a 404");
+        } catch (ResponseException e) {
+            assertThat(e.getResponse().getStatusLine().getStatusCode(), is(404));
+        }
+    }
+
+    private String count(RestClient client) throws IOException {
+        return EntityUtils.toString(client.performRequest("GET", "/foo/_count").getEntity());
+    }
+}
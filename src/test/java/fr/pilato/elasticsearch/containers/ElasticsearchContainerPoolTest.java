@@ -0,0 +1,154 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.apache.http.HttpHost;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ElasticsearchContainerPoolTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Supplier<ElasticsearchContainer> FACTORY = () -> {
+        ElasticsearchContainer container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        return container;
+    };
+
+    @Test
+    public void testLeases() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        ElasticsearchContainerPool pool = new ElasticsearchContainerPool(dir, 2, FACTORY);
+        // Acts like another JVM using the same coordination directory
+        ElasticsearchContainerPool otherJvm = new ElasticsearchContainerPool(dir, 2, FACTORY);
+
+        HttpHost first;
+        try (ElasticsearchContainerPool.Lease lease = pool.acquire(Duration.ofMinutes(5))) {
+            first = lease.getHost();
+            lease.getRestClient().performRequest("PUT", "/foo");
+            // Nodes are only started when they are needed
+            Properties published = readPool(dir);
+            assertThat(published.getProperty("slot.0"), is(first.toHostString()));
+            assertThat(published.getProperty("slot.1"), nullValue());
+
+            try (ElasticsearchContainerPool.Lease other = otherJvm.acquire(Duration.ofSeconds(10))) {
+                assertThat(other.getHost(), not(first));
+
+                // All the nodes are in use
+                try {
+                    pool.acquire(Duration.ofMillis(500)).close();
+                    fail("We should not be able to lease a third node");
+                } catch (IOException expected) {
+                }
+            }
+        }
+
+        // The node has been reset when it was released
+        try (ElasticsearchContainerPool.Lease lease = otherJvm.acquire(Duration.ofSeconds(10))) {
+            assertThat(lease.getHost(), is(first));
+            assertThat(lease.getRestClient().performRequest("HEAD", "/foo").getStatusLine().getStatusCode(), is(404));
+        }
+    }
+
+    @Test
+    public void testLastMemberStopsTheNodes() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        ElasticsearchContainerPool pool = new ElasticsearchContainerPool(dir, 1, FACTORY);
+        ElasticsearchContainerPool otherJvm = new ElasticsearchContainerPool(dir, 1, FACTORY);
+
+        pool.acquire(Duration.ofMinutes(5)).close();
+        try (ElasticsearchContainerPool.Lease lease = otherJvm.acquire(Duration.ofSeconds(10))) {
+            // The JVM which started the nodes exits while another one uses them
+            pool.leave();
+            assertThat(lease.getRestClient().performRequest("GET", "/").getStatusLine().getStatusCode(), is(200));
+        }
+        assertThat(Files.exists(dir.resolve("pool.properties")), is(true));
+
+        // The last JVM stops them
+        otherJvm.leave();
+        assertThat(Files.exists(dir.resolve("pool.properties")), is(false));
+    }
+
+    @Test
+    public void testOrphans() throws IOException {
+        Map<String, String> nodes = new HashMap<>();
+        nodes.put("current", "pool-1");
+        nodes.put("replaced", "pool-0");
+
+        // The pool directory has been removed
+        Path dir = folder.newFolder().toPath();
+        assertThat(ElasticsearchContainerPool.orphans(dir.resolve("removed"), nodes), is(nodes.keySet()));
+
+        Properties pool = new Properties();
+        pool.setProperty("id", "pool-1");
+        pool.setProperty("size", "2");
+        try (OutputStream os = Files.newOutputStream(dir.resolve("pool.properties"))) {
+            pool.store(os, null);
+        }
+
+        // A JVM uses the pool
+        try (FileChannel member = FileChannel.open(dir.resolve("member-test.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            member.lock();
+            assertThat(ElasticsearchContainerPool.orphans(dir, nodes), is(Collections.singleton("replaced")));
+
+            // A JVM is joining the pool
+            try (FileChannel lock = FileChannel.open(dir.resolve("pool.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lock.lock();
+                assertThat(ElasticsearchContainerPool.orphans(dir, nodes).isEmpty(), is(true));
+            }
+        }
+
+        // Nobody uses the pool anymore
+        assertThat(ElasticsearchContainerPool.orphans(dir, nodes), is(nodes.keySet()));
+        assertThat(Files.exists(dir.resolve("pool.properties")), is(false));
+        assertThat(Files.exists(dir.resolve("member-test.lock")), is(false));
+    }
+
+    private static Properties readPool(Path dir) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(dir.resolve("pool.properties"))) {
+            properties.load(is);
+        }
+        return properties;
+    }
+}
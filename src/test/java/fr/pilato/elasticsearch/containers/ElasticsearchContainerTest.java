@@ -21,32 +21,53 @@ package fr.pilato.elasticsearch.containers;
 
 
 import com.github.dockerjava.api.exception.DockerClientException;
+import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.nio.entity.NStringEntity;
 import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.junit.After;
 import org.junit.Test;
+import org.testcontainers.DockerClientFactory;
 import org.testcontainers.containers.ContainerFetchException;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_BASE_URL;
 import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_VERSION;
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
 public class ElasticsearchContainerTest {
 
-    private ElasticsearchContainer container = null;
+    private ElasticsearchContainer<?> container = null;
     private RestClient client = null;
 
     @After
@@ -72,6 +93,30 @@ public class ElasticsearchContainerTest {
         assertThat(response.getStatusLine().getStatusCode(), is(200));
     }
 
+    @Test
+    public void elasticsearchIsReadyWhenStarted() throws IOException {
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.start();
+        // We don't wait here as the wait strategy already waited for the cluster to be yellow
+        Map<String, String> params = new HashMap<>();
+        params.put("wait_for_status", "yellow");
+        params.put("timeout", "0s");
+        Response response = getClient(container).performRequest("GET", "/_cluster/health", params);
+        assertThat(response.getStatusLine().getStatusCode(), is(200));
+    }
+
+    @Test
+    public void elasticsearchStartAsync() throws Exception {
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        CompletableFuture<HttpHost> future = container.startAsync();
+        HttpHost host = future.get(5, TimeUnit.MINUTES);
+        assertThat(host, is(container.getHost()));
+        Response response = getClient(container).performRequest("GET", "/");
+        assertThat(response.getStatusLine().getStatusCode(), is(200));
+    }
+
     @Test
     public void elasticsearchDefaultTest() throws IOException {
         container = new ElasticsearchContainer();
@@ -133,11 +178,267 @@ public class ElasticsearchContainerTest {
             assertThat(responseAsString, containsString("discovery-gce"));
         } catch (ContainerFetchException exception) {
             assertThat(exception.getCause(), instanceOf(DockerClientException.class));
-            assertThat(exception.getCause().getMessage(), containsString("The command '/bin/sh -c bin/elasticsearch-plugin install discovery-gce' returned a non-zero code: 1"));
+            assertThat(exception.getCause().getMessage(), containsString("bin/elasticsearch-plugin install --batch discovery-gce' returned a non-zero code: 1"));
             assumeTrue("We can't test this if internet is not available because we can't download elasticsearch plugins.", false);
         }
     }
 
+    @Test
+    public void elasticsearchImageIsCached() throws IOException {
+        container = new ElasticsearchContainer();
+        container.withSecureSetting("foo", "bar");
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.start();
+        String imageName = container.getDockerImageName();
+        assertThat(imageName, containsString(ElasticsearchContainer.IMAGE_CACHE_REPOSITORY + ":" + container.computeImageHash()));
+        container.stop();
+
+        // Same settings give the same image which is not built again
+        container = new ElasticsearchContainer();
+        container.withSecureSetting("foo", "bar");
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.start();
+        assertThat(container.getDockerImageName(), is(imageName));
+        Response response = getClient(container).performRequest("GET", "/");
+        assertThat(response.getStatusLine().getStatusCode(), is(200));
+    }
+
+    @Test
+    public void elasticsearchImageIsBuiltAgainWhenRemoved() throws IOException {
+        container = new ElasticsearchContainer();
+        container.withSecureSetting("foo", "removed");
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.start();
+        String imageName = container.getDockerImageName();
+        container.stop();
+        DockerClientFactory.instance().client().removeImageCmd(imageName).withForce(true).exec();
+
+        // The image is not in the docker host anymore so it must be built again
+        container = new ElasticsearchContainer();
+        container.withSecureSetting("foo", "removed");
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.start();
+        assertThat(container.getDockerImageName(), is(imageName));
+        Response response = getClient(container).performRequest("GET", "/");
+        assertThat(response.getStatusLine().getStatusCode(), is(200));
+    }
+
+    @Test
+    public void resolvedImagesOnlyCacheSuccessfulBuilds() throws Exception {
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("plugin download failed"));
+        ElasticsearchContainer.ResolvedImage image = new ElasticsearchContainer.ResolvedImage("failed", failed);
+        ElasticsearchContainer.RESOLVED_IMAGES.put("failed", image);
+        try {
+            image.get();
+            fail("The build should have failed");
+        } catch (ExecutionException expected) {
+        }
+        assertThat(ElasticsearchContainer.RESOLVED_IMAGES.containsKey("failed"), is(false));
+
+        image = new ElasticsearchContainer.ResolvedImage("built", CompletableFuture.completedFuture("built"));
+        ElasticsearchContainer.RESOLVED_IMAGES.put("built", image);
+        try {
+            assertThat(image.isResolved(), is(false));
+            assertThat(image.get(), is("built"));
+            assertThat(image.isResolved(), is(true));
+            assertThat(ElasticsearchContainer.RESOLVED_IMAGES.get("built"), is((Object) image));
+        } finally {
+            ElasticsearchContainer.RESOLVED_IMAGES.remove("built");
+        }
+    }
+
+    @Test
+    public void elasticsearchImageHashDependsOnSettings() {
+        ElasticsearchContainer first = new ElasticsearchContainer().withSecureSetting("foo", "bar");
+        ElasticsearchContainer second = new ElasticsearchContainer().withSecureSetting("foo", "bar");
+        assertThat(first.computeImageHash(), is(second.computeImageHash()));
+
+        second.withSecureSetting("foo", "baz");
+        assertThat(first.computeImageHash(), not(second.computeImageHash()));
+
+        second = new ElasticsearchContainer().withSecureSetting("foo", "bar").withPlugin("discovery-gce");
+        assertThat(first.computeImageHash(), not(second.computeImageHash()));
+    }
+
+    @Test
+    public void elasticsearchSnapshotFixtures() throws IOException {
+        Path snapshotDir = Files.createTempDirectory("elasticsearch-snapshots");
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withSnapshotRepository(snapshotDir);
+        container.start();
+
+        assertThat(container.hasFixture("fixture"), is(false));
+        getClient(container).performRequest("PUT", "/foo/doc/1", Collections.singletonMap("refresh", "true"),
+                new NStringEntity("{\"foo\":\"bar\"}", ContentType.APPLICATION_JSON));
+        container.snapshotFixture("fixture");
+        assertThat(container.hasFixture("fixture"), is(true));
+
+        getClient(container).performRequest("DELETE", "/foo");
+        container.restoreFixture("fixture");
+
+        Response response = getClient(container).performRequest("GET", "/foo/_count");
+        assertThat(EntityUtils.toString(response.getEntity()), containsString("\"count\":1"));
+    }
+
+    @Test
+    public void elasticsearchFastEphemeralStorage() throws IOException, InterruptedException {
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withFastEphemeralStorage("256m");
+        container.start();
+
+        String mounts = container.execInContainer("cat", "/proc/mounts").getStdout();
+        assertThat(mounts, containsString("tmpfs /usr/share/elasticsearch/data"));
+
+        getClient(container).performRequest("PUT", "/foo");
+        Response response = getClient(container).performRequest("GET", "/foo/_settings");
+        assertThat(EntityUtils.toString(response.getEntity()), containsString("\"durability\":\"async\""));
+    }
+
+    @Test
+    public void elasticsearchJvmAndResources() throws IOException {
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withHeapSize("300m");
+        container.withGarbageCollector(GarbageCollector.SERIAL);
+        container.withMemoryLimit("1g");
+        container.withCpuLimit(1);
+        container.start();
+
+        Response response = getClient(container).performRequest("GET", "/_nodes/_local/jvm");
+        String jvm = EntityUtils.toString(response.getEntity());
+        assertThat(jvm, containsString("-Xmx300m"));
+        assertThat(jvm, containsString("-XX:+UseSerialGC"));
+        assertThat(container.getContainerInfo().getHostConfig().getMemory(), is(ElasticsearchContainer.parseSize("1g")));
+    }
+
+    @Test
+    public void elasticsearchResourcesCanBeConfiguredTwice() {
+        container = new ElasticsearchContainer();
+        container.withEnv("ES_JAVA_OPTS", "-Dfoo=bar");
+        container.withHeapSize("300m");
+        int modifiers = container.getCreateContainerCmdModifiers().size();
+
+        container.configureResources();
+        assertThat(container.getEnvMap().get("ES_JAVA_OPTS"), is("-Dfoo=bar -Xms300m -Xmx300m"));
+        // Like a second start()
+        container.withHeapSize("400m");
+        container.configureResources();
+        assertThat(container.getEnvMap().get("ES_JAVA_OPTS"), is("-Dfoo=bar -Xms400m -Xmx400m"));
+        assertThat(container.getCreateContainerCmdModifiers().size(), is(modifiers));
+
+        // The user changed it in between
+        container.withEnv("ES_JAVA_OPTS", "-Dfoo=baz");
+        container.configureResources();
+        assertThat(container.getEnvMap().get("ES_JAVA_OPTS"), is("-Dfoo=baz -Xms400m -Xmx400m"));
+    }
+
+    @Test
+    public void elasticsearchStartupTimings() throws IOException {
+        Path report = Files.createTempDirectory("startup").resolve("elasticsearch-startup.ndjson");
+        Map<StartupPhase, Long> notified = new ConcurrentHashMap<>();
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withStartupListener((phase, duration) -> notified.put(phase, duration.toMillis()));
+        container.withStartupReport(report);
+        container.start();
+
+        Map<StartupPhase, Duration> timings = container.getStartupTimings();
+        assertThat(timings.keySet(), hasItems(StartupPhase.RESOLVE, StartupPhase.BUILD,
+                StartupPhase.CREATE, StartupPhase.PORT_OPEN, StartupPhase.CLUSTER_READY));
+        assertThat(notified.keySet(), is(timings.keySet()));
+        List<String> lines = Files.readAllLines(report);
+        assertThat(lines.size(), is(1));
+        assertThat(lines.get(0), containsString("\"cluster_ready\":"));
+    }
+
+    @Test
+    public void elasticsearchStatsSampling() throws IOException, InterruptedException {
+        Path report = Files.createTempDirectory("stats").resolve("elasticsearch-stats.csv");
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withStatsSampling(Duration.ofMillis(100), report);
+        container.start();
+        Thread.sleep(1000);
+        container.stop();
+
+        List<NodeStatsSample> samples = container.getStatsSamples();
+        assertThat(samples.isEmpty(), is(false));
+        assertThat(samples.get(samples.size() - 1).get("jvm.heap_used_bytes"), notNullValue());
+        List<String> lines = Files.readAllLines(report);
+        assertThat(lines.size(), is(samples.size() + 1));
+        assertThat(lines.get(0), containsString("thread_pool.write.rejected"));
+    }
+
+    @Test
+    public void elasticsearchFaultInjectionProxy() throws IOException {
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withFaultInjectionProxy();
+        container.start();
+
+        FaultInjectionProxy proxy = container.getFaultInjectionProxy();
+        assertThat(container.getHost().getPort(), is(proxy.getPort()));
+        proxy.withLatency(Duration.ofMillis(100), Duration.ZERO);
+        long start = System.nanoTime();
+        Response response = container.getRestClient().performRequest("GET", "/");
+        assertThat(response.getStatusLine().getStatusCode(), is(200));
+        assertThat(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 200, is(true));
+
+        proxy.withoutFaults().withResetProbability(1);
+        try {
+            container.getRestClient().performRequest("GET", "/");
+            fail("The connection should have been reset");
+        } catch (IOException expected) {
+            assertThat(proxy.getResetCount() > 0, is(true));
+        }
+    }
+
+    @Test
+    public void elasticsearchCheckpoint() throws IOException {
+        String name = "test-" + UUID.randomUUID();
+        AtomicInteger setups = new AtomicInteger();
+        CheckpointSetup setup = es -> {
+            setups.incrementAndGet();
+            es.getRestClient().performRequest("PUT", "/golden/doc/1", Collections.emptyMap(),
+                    new NStringEntity("{\"foo\":\"bar\"}", ContentType.APPLICATION_JSON));
+        };
+
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withCheckpoint(name, setup);
+        container.start();
+        assertThat(container.isCheckpointRestored(), is(false));
+        assertThat(setups.get(), is(1));
+        container.stop();
+
+        container = new ElasticsearchContainer();
+        container.withEnv("ELASTIC_PASSWORD", "changeme");
+        container.withCheckpoint(name, setup);
+        container.start();
+        String checkpointImage = container.getDockerImageName();
+        try {
+            assertThat(container.isCheckpointRestored(), is(true));
+            assertThat(setups.get(), is(1));
+            Response response = container.getRestClient().performRequest("GET", "/golden/doc/1");
+            assertThat(response.getStatusLine().getStatusCode(), is(200));
+        } finally {
+            container.stop();
+            container = null;
+            DockerClientFactory.instance().client().removeImageCmd(checkpointImage).withForce(true).exec();
+        }
+    }
+
+    @Test
+    public void parseSize() {
+        assertThat(ElasticsearchContainer.parseSize("1024"), is(1024L));
+        assertThat(ElasticsearchContainer.parseSize("2k"), is(2048L));
+        assertThat(ElasticsearchContainer.parseSize("512m"), is(512L * 1024 * 1024));
+        assertThat(ElasticsearchContainer.parseSize("1G"), is(1024L * 1024 * 1024));
+    }
+
     private RestClient getClient(ElasticsearchContainer container) {
         if (client == null) {
             final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
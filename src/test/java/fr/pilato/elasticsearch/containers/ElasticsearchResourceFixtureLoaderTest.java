@@ -0,0 +1,56 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Response;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ElasticsearchResourceFixtureLoaderTest extends ElasticsearchResourceBaseTest {
+    @ClassRule
+    public static ElasticsearchResource elasticsearch = new ElasticsearchResource();
+
+    @Override
+    ElasticsearchResource getElasticsearchResource() {
+        return elasticsearch;
+    }
+
+    @Test
+    public void testLoadFixture() throws IOException {
+        BulkFixtureLoader.Result result = elasticsearch.fixtureLoader()
+                .withBatchSize(3)
+                .withConcurrency(2)
+                .loadFromClasspath("fixtures", "/fr/pilato/elasticsearch/containers/fixtures/documents.ndjson");
+
+        assertThat(result.getIndexedDocs(), is(10L));
+        assertThat(result.getFailedDocs(), is(0L));
+
+        Response response = restClient.performRequest("GET", "/fixtures/_count");
+        assertThat(EntityUtils.toString(response.getEntity()), containsString("\"count\":10"));
+    }
+}
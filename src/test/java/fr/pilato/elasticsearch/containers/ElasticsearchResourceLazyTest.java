@@ -0,0 +1,70 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ElasticsearchResourceLazyTest extends ElasticsearchResourceBaseTest {
+    @ClassRule
+    public static ElasticsearchResource elasticsearch = new ElasticsearchResource("elasticsearch-lazy.properties");
+
+    @Override
+    ElasticsearchResource getElasticsearchResource() {
+        return elasticsearch;
+    }
+
+    @Test
+    public void testUnusedResourceDoesNotStart() {
+        ElasticsearchResource unused = new ElasticsearchResource().withLazyStart(true);
+        unused.before();
+        assertThat(unused.isStarted(), is(false));
+        unused.after();
+        assertThat(unused.isStarted(), is(false));
+    }
+
+    @Test
+    public void testStartsOnlyOnce() {
+        ElasticsearchResource resource = new ElasticsearchResource().withLazyStart(true);
+        resource.before();
+        try {
+            List<CompletableFuture<ElasticsearchContainer>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(CompletableFuture.supplyAsync(resource::getContainer));
+            }
+            ElasticsearchContainer container = futures.get(0).join();
+            for (CompletableFuture<ElasticsearchContainer> future : futures) {
+                assertThat(future.join(), sameInstance(container));
+            }
+            assertThat(resource.isStarted(), is(true));
+        } finally {
+            resource.after();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ElasticsearchResourcePooledTest extends ElasticsearchResourceBaseTest {
+    @ClassRule
+    public static ElasticsearchResource elasticsearch = new ElasticsearchResource("elasticsearch-pooled.properties");
+
+    @Override
+    ElasticsearchResource getElasticsearchResource() {
+        return elasticsearch;
+    }
+
+    @Test
+    public void testNodeIsLeased() throws Exception {
+        // The node may run in another JVM
+        assertThat(elasticsearch.getContainer(), nullValue());
+        restClient.performRequest("PUT", "/foo");
+        elasticsearch.reset();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Response;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ElasticsearchResourceRefreshTest extends ElasticsearchResourceBaseTest {
+    @ClassRule
+    public static ElasticsearchResource elasticsearch = new ElasticsearchResource();
+
+    @Override
+    ElasticsearchResource getElasticsearchResource() {
+        return elasticsearch;
+    }
+
+    @Test
+    public void testWrittenIndex() {
+        assertThat(RefreshController.writtenIndex("PUT", "/foo/doc/1"), is("foo"));
+        assertThat(RefreshController.writtenIndex("POST", "/foo/doc/1/_update"), is("foo"));
+        assertThat(RefreshController.writtenIndex("POST", "/foo/_bulk"), is("foo"));
+        assertThat(RefreshController.writtenIndex("POST", "/_bulk"), is("_all"));
+        assertThat(RefreshController.writtenIndex("GET", "/foo/doc/1"), nullValue());
+        assertThat(RefreshController.writtenIndex("POST", "/foo/_search"), nullValue());
+        assertThat(RefreshController.writtenIndex("POST", "/foo/doc/_search"), nullValue());
+        assertThat(RefreshController.writtenIndex("PUT", "/foo"), nullValue());
+        assertThat(RefreshController.writtenIndex("PUT", "/foo/doc/1?refresh=wait_for"), nullValue());
+        assertThat(RefreshController.writtenIndex("PUT", "/foo/doc/1?refresh=false"), is("foo"));
+    }
+
+    @Test
+    public void testWaitFor() throws IOException {
+        RefreshController refresh = new RefreshController(null, 6, RefreshController.DEFAULT_REFRESH_INTERVAL);
+        assertThat(refresh.waitFor("foo"), is(Collections.singletonMap("refresh", "wait_for")));
+
+        // Waiting for the next refresh would take up to 30 seconds with the index defaults
+        RefreshController fast = new RefreshController(null, 6, ElasticsearchContainer.INDEX_DEFAULTS_REFRESH_INTERVAL);
+        assertThat(fast.waitFor("foo"), is(Collections.singletonMap("refresh", "true")));
+    }
+
+    @Test
+    public void testManualRefresh() throws IOException {
+        RefreshController refresh = elasticsearch.refreshController();
+        refresh.manualRefreshForNewIndices("refresh-*");
+        assertThat(refresh.refresh(), is(false));
+
+        for (int i = 0; i < 10; i++) {
+            restClient.performRequest("PUT", "/refresh-test/doc/" + i, Collections.emptyMap(),
+                    new NStringEntity("{\"foo\":\"bar\"}", ContentType.APPLICATION_JSON));
+        }
+        assertThat(refresh.getPendingIndices(), is(Collections.singleton("refresh-test")));
+        // Nothing is visible until we refresh
+        assertThat(count("refresh-test"), is(0));
+
+        assertThat(refresh.refresh(), is(true));
+        assertThat(refresh.getPendingIndices().isEmpty(), is(true));
+        assertThat(count("refresh-test"), is(10));
+
+        assertThat(refresh.waitFor("refresh-test"), is(Collections.singletonMap("refresh", "true")));
+        assertThat(refresh.waitFor("other"), is(Collections.singletonMap("refresh", "wait_for")));
+        restClient.performRequest("PUT", "/refresh-test/doc/10", refresh.waitFor("refresh-test"),
+                new NStringEntity("{\"foo\":\"bar\"}", ContentType.APPLICATION_JSON));
+        assertThat(refresh.getPendingIndices().isEmpty(), is(true));
+        assertThat(count("refresh-test"), is(11));
+
+        elasticsearch.reset();
+    }
+
+    private int count(String index) throws IOException {
+        Response response = restClient.performRequest("GET", "/" + index + "/_count");
+        return new ObjectMapper().readTree(response.getEntity().getContent()).path("count").asInt();
+    }
+}
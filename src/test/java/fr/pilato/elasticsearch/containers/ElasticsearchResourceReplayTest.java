@@ -0,0 +1,61 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Response;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ElasticsearchResourceReplayTest extends ElasticsearchResourceBaseTest {
+    @ClassRule
+    public static ElasticsearchResource elasticsearch = new ElasticsearchResource("elasticsearch-replay.properties");
+
+    @Override
+    ElasticsearchResource getElasticsearchResource() {
+        return elasticsearch;
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        // No container at all
+        assertThat(elasticsearch.getContainer(), nullValue());
+        assertThat(count(), is("{\"count\":0}"));
+        Response response = restClient.performRequest("PUT", "/foo/doc/1", Collections.emptyMap(),
+                new NStringEntity("{\"foo\":\"bar\"}", ContentType.APPLICATION_JSON));
+        assertThat(response.getStatusLine().getStatusCode(), is(201));
+        assertThat(count(), is("{\"count\":1}"));
+        elasticsearch.reset();
+    }
+
+    private String count() throws IOException {
+        return EntityUtils.toString(restClient.performRequest("GET", "/foo/_count").getEntity());
+    }
+}
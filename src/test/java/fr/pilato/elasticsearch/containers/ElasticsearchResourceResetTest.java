@@ -0,0 +1,121 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.ResponseException;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ElasticsearchResourceResetTest extends ElasticsearchResourceBaseTest {
+    @ClassRule
+    public static ElasticsearchResource elasticsearch = new ElasticsearchResource();
+
+    @Override
+    ElasticsearchResource getElasticsearchResource() {
+        return elasticsearch;
+    }
+
+    @Test
+    public void testReset() throws IOException {
+        restClient.performRequest("PUT", "/foo");
+        restClient.performRequest("PUT", "/_template/foo", Collections.emptyMap(),
+                new NStringEntity("{\"index_patterns\":[\"foo*\"]}", ContentType.APPLICATION_JSON));
+        assertThat(exists("/foo"), is(true));
+
+        elasticsearch.reset();
+
+        assertThat(exists("/foo"), is(false));
+        assertThat(exists("/_template/foo"), is(false));
+    }
+
+    @Test
+    public void testResetKeepsSystemTemplatesAndPipelines() throws IOException {
+        restClient.performRequest("PUT", "/_template/.monitoring-test", Collections.emptyMap(),
+                new NStringEntity("{\"index_patterns\":[\".monitoring-test*\"]}", ContentType.APPLICATION_JSON));
+        restClient.performRequest("PUT", "/_template/security-index-template-test", Collections.emptyMap(),
+                new NStringEntity("{\"index_patterns\":[\".security-test*\"]}", ContentType.APPLICATION_JSON));
+        restClient.performRequest("PUT", "/_ingest/pipeline/xpack_monitoring_test", Collections.emptyMap(),
+                new NStringEntity("{\"processors\":[]}", ContentType.APPLICATION_JSON));
+        restClient.performRequest("PUT", "/_ingest/pipeline/foo", Collections.emptyMap(),
+                new NStringEntity("{\"processors\":[]}", ContentType.APPLICATION_JSON));
+
+        elasticsearch.reset();
+
+        assertThat(exists("/_template/.monitoring-test"), is(true));
+        assertThat(exists("/_template/security-index-template-test"), is(true));
+        assertThat(status("/_ingest/pipeline/xpack_monitoring_test"), is(200));
+        assertThat(status("/_ingest/pipeline/foo"), is(404));
+
+        restClient.performRequest("DELETE", "/_template/.monitoring-test");
+        restClient.performRequest("DELETE", "/_template/security-index-template-test");
+        restClient.performRequest("DELETE", "/_ingest/pipeline/xpack_monitoring_test");
+    }
+
+    @Test
+    public void testSystemNames() {
+        assertThat(ClusterReset.isSystem(ElasticsearchContainer.INDEX_DEFAULTS_TEMPLATE), is(true));
+        assertThat(ClusterReset.isSystem(RefreshController.MANUAL_REFRESH_TEMPLATE), is(true));
+        assertThat(ClusterReset.isSystem(".watches"), is(true));
+        assertThat(ClusterReset.isSystem("security-index-template"), is(true));
+        assertThat(ClusterReset.isSystem("xpack_monitoring_6"), is(true));
+        assertThat(ClusterReset.isSystem("foo"), is(false));
+    }
+
+    @Test
+    public void testResetNamespace() throws IOException {
+        IndexNamespace namespace = elasticsearch.newIndexNamespace();
+        IndexNamespace other = elasticsearch.newIndexNamespace();
+        assertThat(namespace.getPrefix(), not(other.getPrefix()));
+        assertThat(namespace.index("foo"), startsWith(namespace.getPrefix()));
+
+        restClient.performRequest("PUT", "/" + namespace.index("foo"));
+        restClient.performRequest("PUT", "/" + other.index("foo"));
+
+        elasticsearch.reset(namespace);
+
+        assertThat(exists("/" + namespace.index("foo")), is(false));
+        assertThat(exists("/" + other.index("foo")), is(true));
+
+        elasticsearch.reset(other);
+    }
+
+    private boolean exists(String endpoint) throws IOException {
+        return restClient.performRequest("HEAD", endpoint).getStatusLine().getStatusCode() == 200;
+    }
+
+    private int status(String endpoint) throws IOException {
+        try {
+            return restClient.performRequest("GET", endpoint).getStatusLine().getStatusCode();
+        } catch (ResponseException e) {
+            return e.getResponse().getStatusLine().getStatusCode();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static fr.pilato.elasticsearch.containers.ElasticsearchContainer.ELASTICSEARCH_DEFAULT_VERSION;
+import static fr.pilato.elasticsearch.containers.ElasticsearchVersionMatrix.DEFAULT_FLAVOUR;
+import static fr.pilato.elasticsearch.containers.ElasticsearchVersionMatrix.OSS_FLAVOUR;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ElasticsearchVersionMatrixTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static LoadGenerator.Result result(long indexMicros, long searchMicros) {
+        Histogram index = new Histogram(3);
+        Histogram search = new Histogram(3);
+        for (int i = 0; i < 100; i++) {
+            index.recordValue(indexMicros);
+            search.recordValue(searchMicros);
+        }
+        return new LoadGenerator.Result(20, Duration.ofSeconds(10), index, search, 1, 0, 10);
+    }
+
+    private static ElasticsearchVersionMatrix.Report report() {
+        return new ElasticsearchVersionMatrix.Report(Arrays.asList(
+                new ElasticsearchVersionMatrix.Row("5.6.10", DEFAULT_FLAVOUR, Duration.ofMillis(12000), result(1800, 1500), null),
+                new ElasticsearchVersionMatrix.Row("6.3.0", DEFAULT_FLAVOUR, Duration.ofMillis(9000), result(2000, 1000), null),
+                new ElasticsearchVersionMatrix.Row("5.6.10", OSS_FLAVOUR, null, null, new IOException("image not found"))));
+    }
+
+    @Test
+    public void testReportIsSideBySide() {
+        ElasticsearchVersionMatrix.Report report = report();
+        assertThat(report.getRows().size(), is(3));
+        assertThat(report.getRow("6.3.0", DEFAULT_FLAVOUR).getStartup(), is(Duration.ofMillis(9000)));
+        assertThat(report.getRow("6.3.0", OSS_FLAVOUR), nullValue());
+
+        String[] lines = report.toString().split("\n");
+        assertThat(lines.length, is(4));
+        assertThat(lines[0], containsString("startup(ms)"));
+        assertThat(lines[1], containsString("5.6.10 "));
+        assertThat(lines[1], containsString("12000"));
+        assertThat(lines[1], containsString("1.800"));
+        assertThat(lines[2], containsString("6.3.0 "));
+        assertThat(lines[2], containsString("2.000"));
+        // 99 successful bulk requests of 10 documents in 10 seconds
+        assertThat(lines[2], containsString(" 99 "));
+        assertThat(lines[3], containsString("5.6.10-oss"));
+        assertThat(lines[3], containsString("failed: image not found"));
+    }
+
+    @Test
+    public void testWriteCsvReport() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("reports").resolve("matrix.csv");
+        report().writeReport(file);
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(4));
+        assertThat(lines.get(0), is("version,startup(ms),ops/s,docs/s,index p50(ms),index p99(ms),index errors," +
+                "search p50(ms),search p99(ms),search errors,failure"));
+        assertThat(lines.get(2), is("6.3.0,9000,20.0,99,2.000,2.000,1,1.000,1.000,0,"));
+        assertThat(lines.get(3), is("5.6.10-oss,,,,,,,,,,\"image not found\""));
+    }
+
+    @Test
+    public void testCsvReportDoesNotDependOnTheLocale() throws IOException {
+        Locale defaultLocale = Locale.getDefault();
+        // French uses a comma as decimal separator which would add columns to the CSV
+        Locale.setDefault(Locale.FRANCE);
+        try {
+            Path file = folder.getRoot().toPath().resolve("matrix.csv");
+            report().writeReport(file);
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertThat(lines.get(2), is("6.3.0,9000,20.0,99,2.000,2.000,1,1.000,1.000,0,"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    public void testCompareFlavours() throws InterruptedException {
+        ElasticsearchVersionMatrix.Report report = new ElasticsearchVersionMatrix()
+                .withVersions(ELASTICSEARCH_DEFAULT_VERSION)
+                .withFlavours(DEFAULT_FLAVOUR, OSS_FLAVOUR)
+                .withParallelism(2)
+                .withNodeCustomizer(node -> node.withHeapSize("256m").withEnv("ELASTIC_PASSWORD", "changeme"))
+                .withWorkload(load -> load.withRate(20).withSearchRatio(0.5).withDuration(Duration.ofSeconds(2)))
+                .run();
+
+        assertThat(report.getRows().size(), is(2));
+        for (ElasticsearchVersionMatrix.Row row : report.getRows()) {
+            assertThat(row.getName(), row.getFailure(), nullValue());
+            assertThat(row.getStartup(), notNullValue());
+            assertThat(row.getResult().getIndexErrors(), is(0L));
+            assertThat(row.getResult().getSearchErrors(), is(0L));
+        }
+    }
+}
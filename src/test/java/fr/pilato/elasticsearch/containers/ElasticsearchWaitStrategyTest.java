@@ -0,0 +1,85 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ElasticsearchWaitStrategyTest {
+
+    private static final String CREDENTIALS = "Basic " +
+            Base64.getEncoder().encodeToString("elastic:changeme".getBytes(StandardCharsets.UTF_8));
+
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void startSecuredNode() throws IOException {
+        // Acts like a node with X-Pack security
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().close();
+            boolean authorized = CREDENTIALS.equals(exchange.getRequestHeaders().getFirst("Authorization"));
+            exchange.sendResponseHeaders(authorized ? 200 : 401, -1);
+            exchange.close();
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/_cluster/health?wait_for_status=yellow&timeout=1s";
+    }
+
+    @After
+    public void stopSecuredNode() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testReadyWithCredentials() {
+        assertThat(new ElasticsearchWaitStrategy().withBasicCredentials("elastic", "changeme").isReady(url), is(true));
+    }
+
+    @Test
+    public void testNotReadyWithWrongCredentials() {
+        assertThat(new ElasticsearchWaitStrategy().withBasicCredentials("elastic", "wrong").isReady(url), is(false));
+    }
+
+    @Test
+    public void testReadyWithoutCredentials() {
+        // A 5.x X-Pack image started without ELASTIC_PASSWORD answers 401 but it is up
+        ElasticsearchWaitStrategy strategy = new ElasticsearchWaitStrategy();
+        assertThat(strategy.isReady(url), is(true));
+        assertThat(strategy.isReady(url), is(true));
+    }
+
+    @Test
+    public void testNotReadyWhenNodeIsDown() {
+        server.stop(0);
+        assertThat(new ElasticsearchWaitStrategy().isReady(url), is(false));
+    }
+}
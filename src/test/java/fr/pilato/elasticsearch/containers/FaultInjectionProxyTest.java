@@ -0,0 +1,128 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class FaultInjectionProxyTest {
+
+    private ServerSocket echoServer;
+    private FaultInjectionProxy proxy;
+
+    @Before
+    public void startEchoServer() throws IOException {
+        echoServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            while (!echoServer.isClosed()) {
+                try {
+                    Socket socket = echoServer.accept();
+                    Thread echo = new Thread(() -> {
+                        byte[] buffer = new byte[8192];
+                        try (Socket s = socket; InputStream in = s.getInputStream(); OutputStream out = s.getOutputStream()) {
+                            int read;
+                            while ((read = in.read(buffer)) >= 0) {
+                                out.write(buffer, 0, read);
+                            }
+                        } catch (IOException ignored) {
+                        }
+                    });
+                    echo.setDaemon(true);
+                    echo.start();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        proxy = new FaultInjectionProxy(echoServer.getInetAddress().getHostAddress(), echoServer.getLocalPort());
+    }
+
+    @After
+    public void stop() throws IOException {
+        proxy.close();
+        echoServer.close();
+    }
+
+    @Test
+    public void testForward() throws IOException {
+        assertThat(roundTrip(new byte[100_000]), is(100_000));
+        assertThat(proxy.getConnectionCount(), is(1L));
+        assertThat(proxy.getBytesForwarded(), is(200_000L));
+    }
+
+    @Test
+    public void testLatency() throws IOException {
+        proxy.withLatency(Duration.ofMillis(100), Duration.ofMillis(10));
+        long start = System.nanoTime();
+        roundTrip(new byte[10]);
+        // Both directions are delayed
+        assertThat(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 180, is(true));
+    }
+
+    @Test
+    public void testBandwidth() throws IOException {
+        proxy.withBandwidth(200_000);
+        long start = System.nanoTime();
+        roundTrip(new byte[100_000]);
+        // 100kb at 200kb/s. Both directions run at the same time.
+        assertThat(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 450, is(true));
+    }
+
+    @Test
+    public void testReset() throws IOException {
+        proxy.withResetProbability(1);
+        try {
+            roundTrip(new byte[10]);
+            fail("The connection should have been reset");
+        } catch (IOException expected) {
+            assertThat(proxy.getResetCount(), is(1L));
+        }
+
+        proxy.withoutFaults();
+        assertThat(roundTrip(new byte[10]), is(10));
+    }
+
+    private int roundTrip(byte[] data) throws IOException {
+        try (Socket socket = new Socket(proxy.getHost(), proxy.getPort())) {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(data);
+            out.flush();
+            byte[] received = new byte[data.length];
+            new DataInputStream(socket.getInputStream()).readFully(received);
+            return received.length;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class LoadGeneratorTest {
+
+    private static final byte[] RESPONSE = "{\"acknowledged\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private RestClient client;
+    private volatile long responseDelayMillis = 0;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try (InputStream is = exchange.getRequestBody()) {
+                while (is.read() != -1) {
+                    // We don't need the body
+                }
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(responseDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, RESPONSE.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(RESPONSE);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        client = RestClient.builder(new HttpHost(server.getAddress().getHostString(), server.getAddress().getPort())).build();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        client.close();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testMixedWorkload() throws IOException {
+        LoadGenerator.Result result = new LoadGenerator(client)
+                .withRate(200)
+                .withSearchRatio(0.5)
+                .withBulkSize(10)
+                .withWarmup(Duration.ofMillis(200))
+                .withDuration(Duration.ofSeconds(1))
+                .run("load");
+
+        long operations = result.getIndexLatencies().getTotalCount() + result.getSearchLatencies().getTotalCount();
+        assertThat(operations, is(200L));
+        assertThat(result.getIndexLatencies().getTotalCount() > 0, is(true));
+        assertThat(result.getSearchLatencies().getTotalCount() > 0, is(true));
+        assertThat(result.getIndexErrors() + result.getSearchErrors(), is(0L));
+        assertThat(result.getThroughput() > 150, is(true));
+    }
+
+    @Test
+    public void testNoCoordinatedOmission() throws IOException {
+        // The node answers in 100ms but we only send one request at a time, 20 times per second
+        responseDelayMillis = 100;
+        LoadGenerator.Result result = new LoadGenerator(client)
+                .withRate(20)
+                .withMaxInFlight(1)
+                .withDuration(Duration.ofMillis(500))
+                .run("load");
+
+        // Operations waited more and more for the previous ones: a closed loop would only see 100ms
+        assertThat(result.getIndexLatencies().getMaxValue() > TimeUnit.MILLISECONDS.toMicros(400), is(true));
+        assertThat(result.getThroughput() < 15, is(true));
+    }
+}
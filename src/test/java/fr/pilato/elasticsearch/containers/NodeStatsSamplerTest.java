@@ -0,0 +1,110 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.JsonNode;
+import org.testcontainers.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class NodeStatsSamplerTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadNodeStats() throws IOException {
+        JsonNode node = MAPPER.readTree("{" +
+                "\"jvm\":{\"mem\":{\"heap_used_in_bytes\":1024,\"heap_used_percent\":12}," +
+                "\"gc\":{\"collectors\":{\"young\":{\"collection_count\":3,\"collection_time_in_millis\":40}," +
+                "\"old\":{\"collection_count\":1,\"collection_time_in_millis\":20}}}}," +
+                "\"thread_pool\":{\"bulk\":{\"active\":1,\"queue\":2,\"rejected\":3}," +
+                "\"search\":{\"active\":0,\"queue\":0,\"rejected\":0}}," +
+                "\"indices\":{\"merges\":{\"current\":1,\"total\":5,\"total_time_in_millis\":100}}}");
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        NodeStatsSampler.readNodeStats(node, metrics);
+
+        assertThat(metrics.get("jvm.heap_used_bytes").longValue(), is(1024L));
+        assertThat(metrics.get("jvm.gc.young.millis").longValue(), is(40L));
+        // 5.x and 6.2 call it bulk
+        assertThat(metrics.get("thread_pool.write.rejected").longValue(), is(3L));
+        assertThat(metrics.get("indices.merges.current").longValue(), is(1L));
+        assertThat(metrics.get("indices.segments.count"), nullValue());
+    }
+
+    @Test
+    public void testRingBufferAndReports() throws IOException {
+        NodeStatsSampler sampler = new NodeStatsSampler(null, "foo", Duration.ofSeconds(1), 2);
+        for (int i = 0; i < 3; i++) {
+            Map<String, Number> metrics = new LinkedHashMap<>();
+            metrics.put("jvm.heap_used_percent", i);
+            if (i == 2) {
+                metrics.put("container.cpu_percent", 12.5);
+            }
+            sampler.add(new NodeStatsSample(Instant.ofEpochSecond(i), metrics));
+        }
+
+        List<NodeStatsSample> samples = sampler.getSamples();
+        assertThat(samples.size(), is(2));
+        assertThat(samples.get(0).get("jvm.heap_used_percent"), is(1));
+
+        Path csv = folder.getRoot().toPath().resolve("stats.csv");
+        sampler.writeReport(csv);
+        List<String> lines = Files.readAllLines(csv);
+        assertThat(lines.get(0), is("timestamp,jvm.heap_used_percent,container.cpu_percent"));
+        assertThat(lines.get(1), is("1970-01-01T00:00:01Z,1,"));
+        assertThat(lines.get(2), is("1970-01-01T00:00:02Z,2,12.5"));
+
+        Path json = folder.getRoot().toPath().resolve("stats.json");
+        sampler.writeReport(json);
+        JsonNode array = MAPPER.readTree(json.toFile());
+        assertThat(array.size(), is(2));
+        assertThat(array.get(1).path("container.cpu_percent").asDouble(), is(12.5));
+        assertThat(array.get(0).path("timestamp").asText(), is("1970-01-01T00:00:01Z"));
+    }
+
+    @Test
+    public void testSampleErrors() throws IOException {
+        RestClient client = RestClient.builder(new HttpHost("127.0.0.1", 9200)).build();
+        // A closed client throws an IllegalStateException
+        client.close();
+        NodeStatsSampler sampler = new NodeStatsSampler(client, "foo", Duration.ofSeconds(1), 2);
+        sampler.sample();
+        assertThat(sampler.getSamples().isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PluginResolverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResolveFromMavenRepository() throws IOException {
+        Path cache = folder.newFolder("cache").toPath();
+        Path maven = folder.newFolder("m2").toPath();
+        Path artifact = maven.resolve("org/elasticsearch/plugin/my-plugin/6.3.0/my-plugin-6.3.0.zip");
+        Files.createDirectories(artifact.getParent());
+        Files.write(artifact, "fake zip".getBytes(StandardCharsets.UTF_8));
+
+        PluginStaging staging = new PluginStaging(cache.resolve(PluginStaging.MANIFEST_FILE));
+        PluginResolver resolver = new PluginResolver(cache, maven, null, staging);
+        Path resolved = resolver.resolve("my-plugin", "6.3.0");
+        assertThat(resolved, notNullValue());
+        assertThat(resolved.startsWith(cache), is(true));
+        assertThat(resolved.getFileName().toString(), is("my-plugin-6.3.0.zip"));
+        // The plugin is stored under its hash
+        String hash = Digests.toHex(Digests.newDigest().digest(Files.readAllBytes(artifact)));
+        assertThat(resolved.getParent().getFileName().toString(), is(hash));
+        // Nothing is copied as the file is linked from the maven repository
+        assertThat(staging.getBytesCopied(), is(0L));
+
+        // Once in the cache, we don't need the maven repository anymore
+        Files.delete(artifact);
+        assertThat(resolver.resolve("my-plugin", "6.3.0"), is(resolved));
+    }
+
+    @Test
+    public void testMirrorTimeout() throws IOException {
+        Path cache = folder.newFolder("cache").toPath();
+        // A mirror which accepts connections but never answers
+        try (ServerSocket mirror = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            PluginResolver resolver = new PluginResolver(cache, folder.newFolder("m2").toPath(),
+                    "http://" + mirror.getInetAddress().getHostAddress() + ":" + mirror.getLocalPort(),
+                    new PluginStaging(cache.resolve(PluginStaging.MANIFEST_FILE)))
+                    .withMirrorTimeout(Duration.ofMillis(200));
+            long start = System.nanoTime();
+            // We fall back to the install from within the container
+            assertThat(resolver.resolve("my-plugin", "6.3.0"), nullValue());
+            assertThat(Duration.ofNanos(System.nanoTime() - start).getSeconds() < 5, is(true));
+        }
+    }
+
+    @Test
+    public void testUnknownPlugins() throws IOException {
+        Path cache = folder.newFolder("cache").toPath();
+        PluginResolver resolver = new PluginResolver(cache, folder.newFolder("m2").toPath(), null,
+                new PluginStaging(cache.resolve(PluginStaging.MANIFEST_FILE)));
+        assertThat(resolver.resolve("my-plugin", "6.3.0"), nullValue());
+        assertThat(resolver.resolve("file:///tmp/plugins/my-plugin.zip", "6.3.0"), nullValue());
+        assertThat(resolver.resolve("org.elasticsearch:my-plugin:6.3.0", "6.3.0"), nullValue());
+    }
+}
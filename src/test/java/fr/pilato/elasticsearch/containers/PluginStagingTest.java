@@ -0,0 +1,80 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PluginStagingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDigestIsReadFromTheManifest() throws IOException {
+        Path manifest = folder.getRoot().toPath().resolve(PluginStaging.MANIFEST_FILE);
+        Path zip = folder.newFile("plugin.zip").toPath();
+        Files.write(zip, "first version".getBytes(StandardCharsets.UTF_8));
+
+        PluginStaging staging = new PluginStaging(manifest);
+        String digest = staging.digest(zip);
+        assertThat(staging.getBytesHashed(), is(Files.size(zip)));
+        staging.save();
+
+        // A new staging reads the digest from the manifest
+        PluginStaging other = new PluginStaging(manifest);
+        assertThat(other.digest(zip), is(digest));
+        assertThat(other.getBytesHashed(), is(0L));
+
+        // Changing the file computes the digest again
+        Files.write(zip, "second version".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(zip, FileTime.fromMillis(Files.getLastModifiedTime(zip).toMillis() + 10_000));
+        assertThat(other.digest(zip), not(digest));
+        assertThat(other.getBytesHashed(), is(Files.size(zip)));
+    }
+
+    @Test
+    public void testLink() throws IOException {
+        Path source = folder.newFile("plugin.zip").toPath();
+        Files.write(source, "zip content".getBytes(StandardCharsets.UTF_8));
+        Path target = folder.getRoot().toPath().resolve("staged").resolve("plugin.zip");
+
+        PluginStaging staging = new PluginStaging(folder.getRoot().toPath().resolve(PluginStaging.MANIFEST_FILE));
+        staging.link(source, target);
+        assertThat(Files.readAllBytes(target), is(Files.readAllBytes(source)));
+        long size = Files.size(source);
+        assertThat(staging.getBytesCopied() + staging.getBytesReused(), is(size));
+
+        // Staging it again does nothing
+        staging.link(source, target);
+        assertThat(staging.getBytesCopied() + staging.getBytesReused(), is(2 * size));
+    }
+}
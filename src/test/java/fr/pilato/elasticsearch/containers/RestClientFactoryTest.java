@@ -0,0 +1,142 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class RestClientFactoryTest {
+
+    @Test
+    public void testEndpoint() {
+        assertThat(RequestMetrics.endpoint("GET", "/"), is("GET /"));
+        assertThat(RequestMetrics.endpoint("GET", "/my-index/_search?q=foo"), is("GET /*/_search"));
+        assertThat(RequestMetrics.endpoint("PUT", "/my-index/doc/1"), is("PUT /*/*/*"));
+        assertThat(RequestMetrics.endpoint("GET", "/_cluster/health/my-index"), is("GET /_cluster/health/*"));
+        assertThat(RequestMetrics.endpoint("DELETE", "/_template/foo"), is("DELETE /_template/*"));
+    }
+
+    @Test
+    public void testMetrics() throws IOException {
+        byte[] body = "{\"tagline\":\"You Know, for Search\"}".getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().close();
+            boolean root = exchange.getRequestURI().getPath().equals("/");
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(root ? 200 : 404, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        try (RestClientFactory factory = new RestClientFactory(new HttpHost("127.0.0.1", server.getAddress().getPort()), null)
+                .withMaxConnections(2)) {
+            RestClient client = factory.getClient();
+            assertThat(client == factory.getClient(), is(true));
+
+            client.performRequest("GET", "/");
+            client.performRequest("GET", "/");
+            try {
+                client.performRequest("PUT", "/foo/doc/1", Collections.emptyMap(),
+                        new NStringEntity("{\"foo\":\"bar\"}", ContentType.APPLICATION_JSON));
+                fail("We expect a 404");
+            } catch (ResponseException e) {
+                assertThat(e.getResponse().getStatusLine().getStatusCode(), is(404));
+            }
+
+            RequestMetrics.Endpoint root = factory.getMetrics().getEndpoint("GET /");
+            assertThat(root, notNullValue());
+            assertThat(root.getRequests(), is(2L));
+            assertThat(root.getErrors(), is(0L));
+            assertThat(root.getFailures(), is(0L));
+            assertThat(root.getLatencies().getTotalCount(), is(2L));
+            assertThat(root.getResponseBytes(), is(2L * body.length));
+
+            RequestMetrics.Endpoint put = factory.getMetrics().getEndpoint("PUT /*/*/*");
+            assertThat(put.getRequests(), is(1L));
+            assertThat(put.getErrors(), is(1L));
+            assertThat(put.getErrorRate(), is(1.0));
+            assertThat(put.getRequestBytes(), is(13L));
+
+            assertThat(factory.getMetrics().summary(), containsString("PUT /*/*/*"));
+
+            factory.getMetrics().reset();
+            assertThat(factory.getMetrics().getEndpoints().isEmpty(), is(true));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testCredentialsAreSentWithEveryRequest() throws IOException {
+        String credentials = "Basic " + Base64.getEncoder().encodeToString("elastic:changeme".getBytes(StandardCharsets.UTF_8));
+        AtomicInteger received = new AtomicInteger();
+        // Acts like a node with X-Pack security
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().close();
+            received.incrementAndGet();
+            if (credentials.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"security\"");
+                exchange.sendResponseHeaders(401, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+        try (RestClientFactory factory = new RestClientFactory(new HttpHost("127.0.0.1", server.getAddress().getPort()), "changeme")) {
+            AtomicInteger notified = new AtomicInteger();
+            factory.addRequestListener((method, uri) -> notified.incrementAndGet());
+            RestClient client = factory.getClient();
+            client.performRequest("GET", "/");
+            client.performRequest("GET", "/");
+
+            // No 401 challenge
+            assertThat(received.get(), is(2));
+            assertThat(notified.get(), is(2));
+            RequestMetrics.Endpoint root = factory.getMetrics().getEndpoint("GET /");
+            assertThat(root.getRequests(), is(2L));
+            assertThat(root.getErrors(), is(0L));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.CreateContainerCmd;
+import com.github.dockerjava.core.command.CreateContainerCmdImpl;
+import org.junit.Test;
+import org.testcontainers.DockerClientFactory;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SessionDockerClientTest {
+
+    @Test
+    public void testSessionLabel() {
+        // A docker client which only knows how to prepare a container creation
+        DockerClient client = (DockerClient) Proxy.newProxyInstance(DockerClient.class.getClassLoader(), new Class<?>[] { DockerClient.class },
+                (proxy, method, args) -> method.getName().equals("createContainerCmd") ?
+                        new CreateContainerCmdImpl(command -> null, null, (String) args[0]) : null);
+
+        Map<String, String> labels = new HashMap<>(DockerClientFactory.DEFAULT_LABELS);
+        labels.put("foo", "bar");
+        CreateContainerCmd command = SessionDockerClient.wrap(client, "my-session")
+                .createContainerCmd("elasticsearch")
+                .withName("node")
+                .withLabels(labels);
+
+        assertThat(command.getName(), is("node"));
+        assertThat(command.getLabels().get(DockerClientFactory.TESTCONTAINERS_SESSION_ID_LABEL), is("my-session"));
+        assertThat(command.getLabels().get("foo"), is("bar"));
+        assertThat(command.getLabels().get(DockerClientFactory.TESTCONTAINERS_LABEL), is("true"));
+        assertThat(SessionDockerClient.wrap(client, "my-session").infoCmd(), nullValue());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.containers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class StartupTimerTest {
+
+    @Test
+    public void testPhases() {
+        List<StartupPhase> notified = new ArrayList<>();
+        StartupTimer timer = new StartupTimer();
+        timer.addListener((phase, duration) -> notified.add(phase));
+
+        timer.mark(StartupPhase.RESOLVE);
+        timer.mark(StartupPhase.BUILD);
+        // Only the first mark counts
+        timer.mark(StartupPhase.BUILD);
+        timer.mark(StartupPhase.CREATE);
+        timer.mark(StartupPhase.PORT_OPEN);
+        // START happens before PORT_OPEN so it's too late
+        timer.mark(StartupPhase.START);
+        timer.mark(StartupPhase.CLUSTER_READY);
+
+        List<StartupPhase> expected = Arrays.asList(StartupPhase.RESOLVE, StartupPhase.BUILD, StartupPhase.CREATE,
+                StartupPhase.PORT_OPEN, StartupPhase.CLUSTER_READY);
+        assertThat(notified, is(expected));
+        assertThat(new ArrayList<>(timer.getTimings().keySet()), is(expected));
+        long sum = timer.getTimings().values().stream().mapToLong(d -> d.toNanos()).sum();
+        assertThat(sum, is(timer.getTotal().toNanos()));
+
+        timer.reset();
+        assertThat(timer.getTimings().isEmpty(), is(true));
+    }
+}